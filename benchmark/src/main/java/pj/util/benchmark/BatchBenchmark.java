@@ -0,0 +1,87 @@
+package pj.util.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import pj.util.PJObfuscateCache;
+import pj.util.PJObfuscateParallel;
+import pj.util.PJObfuscateUtil;
+
+/**
+ * Throughput of list batches, the shared hash getObfuscated(List), one getObfuscated(String) per value on a
+ * single thread, the same through a PJObfuscateCache, and the same work spread over the common ForkJoinPool. Short
+ * values repeat, there are 800 distinct ones, long values hardly ever repeat.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BatchBenchmark
+{
+    @Param({ "1000", "100000" })
+    public int size;
+
+    @Param({ BenchmarkData.SHORT_ASCII, BenchmarkData.LONG_ASCII })
+    public String inputType;
+
+    private PJObfuscateUtil obfuscateUtil;
+    private PJObfuscateParallel obfuscateParallel;
+    private PJObfuscateCache obfuscateCache;
+    private List<String> values;
+
+    @Setup(Level.Trial)
+    public void setup()
+    {
+        obfuscateUtil = new PJObfuscateUtil(1934233);
+        obfuscateParallel = new PJObfuscateParallel(obfuscateUtil, ForkJoinPool.commonPool(), 2048);
+        obfuscateCache = new PJObfuscateCache(obfuscateUtil, 10000);
+        values = BenchmarkData.getValues(inputType, size);
+    }
+
+    @Benchmark
+    public List<String> getObfuscatedList()
+    {
+        return obfuscateUtil.getObfuscated(values);
+    }
+
+    @Benchmark
+    public List<String> getObfuscatedEach()
+    {
+        List<String> output = new ArrayList<>(values.size());
+        for (String value : values)
+            output.add(obfuscateUtil.getObfuscated(value));
+        return output;
+    }
+
+    @Benchmark
+    public List<String> getObfuscatedCached()
+    {
+        List<String> output = new ArrayList<>(values.size());
+        for (String value : values)
+            output.add(obfuscateCache.getObfuscated(value));
+        return output;
+    }
+
+    @Benchmark
+    public List<String> getObfuscatedParallel()
+    {
+        return obfuscateParallel.getObfuscated(values);
+    }
+}
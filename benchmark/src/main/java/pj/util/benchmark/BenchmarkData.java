@@ -0,0 +1,45 @@
+package pj.util.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Input values shared by the benchmarks, generated from a fixed seed so every run uses the same data.
+ */
+final class BenchmarkData
+{
+    static final String SHORT_ASCII = "shortAscii";
+    static final String LONG_ASCII = "longAscii";
+    static final String MULTILINGUAL = "multilingual";
+
+    private static final String[] FIRST_NAMES = { "James", "Mary", "Robert", "Patricia", "John", "Jennifer", "Michael", "Linda" };
+    private static final String[] LAST_NAMES = { "Smith", "Johnson", "Williams", "Brown", "Jones", "Garcia", "Miller", "Davis" };
+    private static final String[] MULTILINGUAL_WORDS = { "शुक्रिया", "धन्यवाद", "ありがとう", "谢谢你", "شكرا", "नमस्ते", "こんにちは", "你好" };
+
+    private BenchmarkData()
+    {
+    }
+
+    static List<String> getValues(String inputType, int size)
+    {
+        Random random = new Random(size);
+        List<String> values = new ArrayList<>(size);
+        for (int i = 0; i < size; i++)
+        {
+            String firstName = FIRST_NAMES[random.nextInt(FIRST_NAMES.length)];
+            String lastName = LAST_NAMES[random.nextInt(LAST_NAMES.length)];
+            if (SHORT_ASCII.equals(inputType))
+                values.add(firstName + random.nextInt(100));
+            else if (LONG_ASCII.equals(inputType))
+                values.add(firstName + " " + lastName + " " + random.nextInt(10000) + " Main Street, Apt " + random.nextInt(100) + " "
+                        + firstName.toLowerCase() + "." + lastName.toLowerCase() + "@testdomain.com (512) 507-" + (1000 + random.nextInt(9000)));
+            else if (MULTILINGUAL.equals(inputType))
+                values.add(firstName + " " + MULTILINGUAL_WORDS[random.nextInt(MULTILINGUAL_WORDS.length)] + " " + random.nextInt(1000) + " "
+                        + MULTILINGUAL_WORDS[random.nextInt(MULTILINGUAL_WORDS.length)]);
+            else
+                throw new IllegalArgumentException("Unknown input type: " + inputType);
+        }
+        return values;
+    }
+}
@@ -0,0 +1,56 @@
+package pj.util.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import pj.util.PJObfuscateRegistry;
+import pj.util.PJObfuscateUtil;
+
+/**
+ * Cost of creating an instance depending on maxCombination and on the range, the ascii range only covers the
+ * english keyboard while the full range also covers the default Devanagari, Arabic, Japanese and Chinese rules.
+ * registry is the cost of getting the shared instance of the same configuration once it is built.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ConstructorBenchmark
+{
+    @Param({ "1", "200", "1000" })
+    public int maxCombination;
+
+    @Param({ "ascii", "full" })
+    public String range;
+
+    @Param({ "0" })
+    public int maxCachedCombination;
+
+    @Benchmark
+    public PJObfuscateUtil constructor()
+    {
+        if ("ascii".equals(range))
+            return new PJObfuscateUtil(1934233, null, 32, 127, false, maxCombination, maxCachedCombination);
+        return new PJObfuscateUtil(1934233, null, -1, -1, false, maxCombination, maxCachedCombination);
+    }
+
+    @Benchmark
+    public PJObfuscateUtil registry()
+    {
+        if ("ascii".equals(range))
+            return PJObfuscateRegistry.getInstance(1934233, null, 32, 127, false, maxCombination, maxCachedCombination, PJObfuscateUtil.SAMPLED_HASH);
+        return PJObfuscateRegistry.getInstance(1934233, null, -1, -1, false, maxCombination, maxCachedCombination, PJObfuscateUtil.SAMPLED_HASH);
+    }
+}
@@ -0,0 +1,77 @@
+package pj.util.benchmark;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import pj.util.PJObfuscateUtil;
+
+/**
+ * The Latin-1 fast path against the scalar loop it replaces, which is the one used when the fast path is turned
+ * off with -Dpj.util.latin1FastPath=false. Both benchmarks run the same code in their own JVM.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class Latin1Benchmark
+{
+    private static final int POOL_SIZE = 1024;
+
+    @Param({ BenchmarkData.SHORT_ASCII, BenchmarkData.LONG_ASCII })
+    public String inputType;
+
+    private PJObfuscateUtil obfuscateUtil;
+    private char[][] values;
+    private char[] buffer;
+    private int index;
+
+    @Setup(Level.Trial)
+    public void setup()
+    {
+        obfuscateUtil = new PJObfuscateUtil(1934233);
+        List<String> valueList = BenchmarkData.getValues(inputType, POOL_SIZE);
+        values = new char[POOL_SIZE][];
+        int maxLength = 0;
+        for (int i = 0; i < POOL_SIZE; i++)
+        {
+            values[i] = valueList.get(i).toCharArray();
+            maxLength = Math.max(maxLength, values[i].length);
+        }
+        buffer = new char[maxLength];
+    }
+
+    private char[] getObfuscated()
+    {
+        index = (index + 1) & (POOL_SIZE - 1);
+        obfuscateUtil.getObfuscated(values[index], 0, values[index].length, buffer, 0);
+        return buffer;
+    }
+
+    @Benchmark
+    public char[] fastPath()
+    {
+        return getObfuscated();
+    }
+
+    @Benchmark
+    @Fork(value = 1, jvmArgsAppend = "-Dpj.util.latin1FastPath=false")
+    public char[] scalarLoop()
+    {
+        return getObfuscated();
+    }
+}
@@ -0,0 +1,67 @@
+package pj.util.benchmark;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import pj.util.PJObfuscateUtil;
+
+/**
+ * Cost of the metrics, the same calls with the metrics off, the default, and turned on with -Dpj.util.metrics=true.
+ * Both benchmarks run the same code in their own JVM.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MetricsBenchmark
+{
+    private static final int POOL_SIZE = 1024;
+
+    @Param({ BenchmarkData.SHORT_ASCII, BenchmarkData.LONG_ASCII })
+    public String inputType;
+
+    private PJObfuscateUtil obfuscateUtil;
+    private List<String> values;
+    private int index;
+
+    @Setup(Level.Trial)
+    public void setup()
+    {
+        obfuscateUtil = new PJObfuscateUtil(1934233);
+        values = BenchmarkData.getValues(inputType, POOL_SIZE);
+    }
+
+    private String getObfuscated()
+    {
+        index = (index + 1) & (POOL_SIZE - 1);
+        return obfuscateUtil.getObfuscated(values.get(index));
+    }
+
+    @Benchmark
+    public String metricsOff()
+    {
+        return getObfuscated();
+    }
+
+    @Benchmark
+    @Fork(value = 1, jvmArgsAppend = "-Dpj.util.metrics=true")
+    public String metricsOn()
+    {
+        return getObfuscated();
+    }
+}
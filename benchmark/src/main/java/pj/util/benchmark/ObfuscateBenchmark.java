@@ -0,0 +1,123 @@
+package pj.util.benchmark;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import pj.util.PJObfuscateUtil;
+
+/**
+ * Latency of a single value, the values rotate over a pool so the hash, and so the combination in play, changes
+ * from one call to the next like it does with real data.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ObfuscateBenchmark
+{
+    private static final int POOL_SIZE = 1024;
+
+    @Param({ BenchmarkData.SHORT_ASCII, BenchmarkData.LONG_ASCII, BenchmarkData.MULTILINGUAL })
+    public String inputType;
+
+    @Param({ "200" })
+    public int maxCombination;
+
+    @Param({ "" + PJObfuscateUtil.SAMPLED_HASH, "" + PJObfuscateUtil.WHOLE_VALUE_HASH })
+    public int hashMode;
+
+    private PJObfuscateUtil obfuscateUtil;
+    private String[] values;
+    private char[] buffer;
+    private byte[][] utf8Values;
+    private byte[] utf8Buffer;
+    private int index;
+
+    @Setup(Level.Trial)
+    public void setup()
+    {
+        obfuscateUtil = new PJObfuscateUtil(1934233, null, -1, -1, false, maxCombination, 0, hashMode);
+        List<String> valueList = BenchmarkData.getValues(inputType, POOL_SIZE);
+        values = valueList.toArray(new String[POOL_SIZE]);
+        int maxLength = 0;
+        for (String value : values)
+            maxLength = Math.max(maxLength, value.length());
+        buffer = new char[maxLength];
+        utf8Values = new byte[POOL_SIZE][];
+        for (int i = 0; i < POOL_SIZE; i++)
+            utf8Values[i] = values[i].getBytes(StandardCharsets.UTF_8);
+        utf8Buffer = new byte[maxLength * 9];
+    }
+
+    private String nextValue()
+    {
+        index = (index + 1) & (POOL_SIZE - 1);
+        return values[index];
+    }
+
+    @Benchmark
+    public String getObfuscated()
+    {
+        return obfuscateUtil.getObfuscated(nextValue());
+    }
+
+    @Benchmark
+    public String getObfuscatedBySpace()
+    {
+        return obfuscateUtil.getObfuscatedBySpace(nextValue());
+    }
+
+    @Benchmark
+    public String getObfuscatedByEmailDelimiter()
+    {
+        return obfuscateUtil.getObfuscatedByDelimiter(nextValue(), PJObfuscateUtil.EMAIL_DELIMITERS);
+    }
+
+    @Benchmark
+    public char[] getObfuscatedIntoBuffer()
+    {
+        String value = nextValue();
+        obfuscateUtil.getObfuscated(value, 0, value.length(), buffer, 0);
+        return buffer;
+    }
+
+    @Benchmark
+    public byte[] getObfuscatedUtf8()
+    {
+        index = (index + 1) & (POOL_SIZE - 1);
+        obfuscateUtil.getObfuscatedUtf8(utf8Values[index], 0, utf8Values[index].length, utf8Buffer, 0);
+        return utf8Buffer;
+    }
+
+    /**
+     * What getObfuscatedUtf8 replaces, the bytes decoded into a String, obfuscated and encoded back.
+     */
+    @Benchmark
+    public byte[] getObfuscatedUtf8ThroughString()
+    {
+        index = (index + 1) & (POOL_SIZE - 1);
+        return obfuscateUtil.getObfuscated(new String(utf8Values[index], StandardCharsets.UTF_8)).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public String getObfuscatedLong()
+    {
+        return obfuscateUtil.getObfuscated(5125071234L + index);
+    }
+}
@@ -0,0 +1,198 @@
+package pj.util;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ *
+ *         Keeps the obfuscated values of the most recently used input values of a PJObfuscateUtil instance. Columns
+ *         such as city, country, department or first name repeat the same few thousand values over billions of rows,
+ *         the cache returns their obfuscated value without hashing and mapping them again. The output of
+ *         PJObfuscateUtil only depends on its parameters and on the input value, so a cached value is always the
+ *         value that would have been computed.
+ *
+ *         Lookups do not lock. The cache is split into stripes, each one holds at most its share of maxSize values
+ *         and has its own lock that is only taken to add a value. When a stripe is full, the value to drop is chosen
+ *         by a clock, the values used since the clock hand last passed them get a second chance, like the lazy
+ *         combinations of PJObfuscateUtil. getObfuscated(String) and getObfuscatedBySpace(String) have their own
+ *         stripes, each of them holds up to maxSize values. The value is computed outside of the lock, two threads
+ *         missing the same value at the same time both compute it.
+ *
+ *         Here is an example: -
+ *         PJObfuscateCache cache = new PJObfuscateCache(new PJObfuscateUtil(1934233), 100000);
+ *         String obfuscatedCity = cache.getObfuscated(city);
+ *         String obfuscatedName = cache.getObfuscatedBySpace(fullName);
+ *         System.out.println(cache.getHitCount() + " hits, " + cache.getMissCount() + " misses");
+ *
+ *         The cache is thread-safe. It only pays off when values repeat, for columns of unique values such as
+ *         emails, use PJObfuscateUtil directly.
+ */
+
+public final class PJObfuscateCache
+{
+    private final PJObfuscateUtil obfuscateUtil;
+    private final Stripe[] wholeValueStripes;
+    private final Stripe[] bySpaceStripes;
+    private final LongAdder hitCount = new LongAdder();
+    private final LongAdder missCount = new LongAdder();
+    private final LongAdder evictionCount = new LongAdder();
+
+    public PJObfuscateCache(PJObfuscateUtil obfuscateUtil, int maxSize)
+    {
+        if (obfuscateUtil == null)
+            throw new IllegalArgumentException("PJObfuscateUtil is mandatory");
+        if (maxSize < 1)
+            throw new IllegalArgumentException("Illegal maxSize: " + maxSize);
+        this.obfuscateUtil = obfuscateUtil;
+        // a power of two, a few stripes per core but never stripes of less than 16 values
+        int stripeCount = Integer.highestOneBit(Math.max(1, Math.min(Runtime.getRuntime().availableProcessors() * 4, maxSize / 16)));
+        this.wholeValueStripes = getStripes(stripeCount, maxSize);
+        this.bySpaceStripes = getStripes(stripeCount, maxSize);
+    }
+
+    private Stripe[] getStripes(int stripeCount, int maxSize)
+    {
+        Stripe[] stripes = new Stripe[stripeCount];
+        for (int i = 0; i < stripeCount; i++)
+            stripes[i] = new Stripe(maxSize / stripeCount + (i < maxSize % stripeCount ? 1 : 0));
+        return stripes;
+    }
+
+    public String getObfuscated(String input)
+    {
+        return getObfuscated(input, this.wholeValueStripes, false);
+    }
+
+    public String getObfuscatedBySpace(String input)
+    {
+        return getObfuscated(input, this.bySpaceStripes, true);
+    }
+
+    private String getObfuscated(String input, Stripe[] stripes, boolean isBySpace)
+    {
+        if (input == null || input.length() == 0)
+            return input;
+        int hash = input.hashCode();
+        // the low bits pick the stripe, mix the high bits in so that similar values spread over the stripes
+        Stripe stripe = stripes[(hash ^ (hash >>> 16)) & (stripes.length - 1)];
+        CachedValue cachedValue = stripe.map.get(input);
+        if (cachedValue != null)
+        {
+            // only written when needed, so that the threads reading a hot value do not share a dirty cache line
+            if (!cachedValue.isRecentlyUsed)
+                cachedValue.isRecentlyUsed = true;
+            this.hitCount.increment();
+            return cachedValue.value;
+        }
+        this.missCount.increment();
+        String output = isBySpace ? this.obfuscateUtil.getObfuscatedBySpace(input) : this.obfuscateUtil.getObfuscated(input);
+        stripe.put(input, output);
+        return output;
+    }
+
+    public long getHitCount()
+    {
+        return this.hitCount.sum();
+    }
+
+    public long getMissCount()
+    {
+        return this.missCount.sum();
+    }
+
+    public long getEvictionCount()
+    {
+        return this.evictionCount.sum();
+    }
+
+    /**
+     * Returns the number of values in the cache, for both getObfuscated and getObfuscatedBySpace.
+     */
+    public int getSize()
+    {
+        int size = 0;
+        for (Stripe[] stripes : new Stripe[][] { this.wholeValueStripes, this.bySpaceStripes })
+            for (Stripe stripe : stripes)
+                size += stripe.map.size();
+        return size;
+    }
+
+    /**
+     * Drops all the cached values, the statistics are kept.
+     */
+    public void clear()
+    {
+        for (Stripe[] stripes : new Stripe[][] { this.wholeValueStripes, this.bySpaceStripes })
+            for (Stripe stripe : stripes)
+                stripe.clear();
+    }
+
+    @Override
+    public String toString()
+    {
+        long hits = getHitCount();
+        long requests = hits + getMissCount();
+        return String.format("size=%d hits=%d misses=%d hitRate=%.1f%% evictions=%d", getSize(), hits, requests - hits,
+                requests == 0 ? 0.0 : 100.0 * hits / requests, getEvictionCount());
+    }
+
+    private static final class CachedValue
+    {
+        private final String value;
+        // set by the lookups, cleared by the clock hand, a lost update only costs a second chance
+        private boolean isRecentlyUsed = false;
+
+        private CachedValue(String value)
+        {
+            this.value = value;
+        }
+    }
+
+    private final class Stripe
+    {
+        private final ConcurrentHashMap<String, CachedValue> map;
+        // the keys in the order of the clock
+        private final String[] keys;
+        private int count = 0;
+        private int clockHand = 0;
+
+        private Stripe(int maxSize)
+        {
+            this.map = new ConcurrentHashMap<>(Math.min(maxSize, 1024) * 4 / 3 + 1);
+            this.keys = new String[maxSize];
+        }
+
+        private synchronized void put(String key, String value)
+        {
+            if (this.map.containsKey(key))
+                return;
+            int position = this.count;
+            if (position < this.keys.length)
+                this.count++;
+            else
+            {
+                // the sweep is bounded, after a full turn the value under the hand is dropped anyway
+                for (int i = 0; i < this.keys.length && this.map.get(this.keys[this.clockHand]).isRecentlyUsed; i++)
+                {
+                    this.map.get(this.keys[this.clockHand]).isRecentlyUsed = false;
+                    this.clockHand = (this.clockHand + 1) % this.keys.length;
+                }
+                position = this.clockHand;
+                this.map.remove(this.keys[position]);
+                this.clockHand = (this.clockHand + 1) % this.keys.length;
+                evictionCount.increment();
+            }
+            this.keys[position] = key;
+            this.map.put(key, new CachedValue(value));
+        }
+
+        private synchronized void clear()
+        {
+            this.map.clear();
+            Arrays.fill(this.keys, null);
+            this.count = 0;
+            this.clockHand = 0;
+        }
+    }
+}
@@ -0,0 +1,803 @@
+package pj.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ *
+ *         Streams a delimited (CSV) file in UTF-8 through PJObfuscateUtil, column by column. The file is read through
+ *         a FileChannel, either with a buffer or memory mapped, and written through a FileChannel as well. Rows are
+ *         never materialized as Strings, the bytes of the columns that are not obfuscated are copied as they are and
+ *         the columns that are obfuscated go through PJObfuscateUtil.getObfuscatedUtf8 without being decoded. The memory used is constant
+ *         whatever the size of the file, it only depends on the longest field.
+ *
+ *         Each column can have its own rule, which is its own PJObfuscateUtil instance (so its own seed, userMap,
+ *         range and so on) along with one of the following modes: -
+ *              PASS_THROUGH : the column is copied as it is, it is also the mode of the columns without rule
+ *              WHOLE_VALUE : the column value is obfuscated with getObfuscated(String)
+ *              BY_SPACE : the column value is obfuscated with getObfuscatedBySpace(String)
+ *
+ *         Quoted fields follow RFC 4180, a quoted field is written back quoted and a field that was not quoted is
+ *         quoted only if its obfuscated value contains the delimiter, a quote or a line break. Line endings are kept
+ *         as they are. A record ends with LF or CR LF, a CR on its own is part of the field, and so is whatever follows
+ *         the closing quote of a quoted field, they are obfuscated along with it. Files with CR only line endings are
+ *         read as a single record and must be converted first.
+ *
+ *         Here is an example: -
+ *         PJObfuscateFileProcessor processor = new PJObfuscateFileProcessor(',', true, true);
+ *         processor.addColumn("email", new PJObfuscateUtil(1934233), PJObfuscateFileProcessor.WHOLE_VALUE);
+ *         processor.addColumn("full_name", new PJObfuscateUtil(1934233), PJObfuscateFileProcessor.BY_SPACE);
+ *         processor.addColumn(5, new PJObfuscateUtil(1934233, true), PJObfuscateFileProcessor.WHOLE_VALUE);
+ *         processor.process(Paths.get("customers.csv"), Paths.get("customers_obfuscated.csv"));
+ *
+ *         Columns must be added before processing. The processor keeps no state between two files, so the same
+ *         instance can process several files at the same time from different threads.
+ */
+
+public final class PJObfuscateFileProcessor
+{
+    public static final int PASS_THROUGH = 0;
+    public static final int WHOLE_VALUE = 1;
+    public static final int BY_SPACE = 2;
+
+    private static final int BUFFER_SIZE = 1 << 20;
+    private static final int CHUNK_SIZE = 1 << 23;
+    private static final long MAPPED_SIZE = 1L << 28;
+    private static final byte QUOTE = '"';
+    private static final byte CR = '\r';
+    private static final byte LF = '\n';
+
+    private static final int FIELD_START = 0;
+    private static final int UNQUOTED = 1;
+    private static final int QUOTED = 2;
+    private static final int QUOTE_IN_QUOTED = 3;
+    private static final int CR_IN_UNQUOTED = 4;
+    private static final byte[] CR_ARRAY = { CR };
+
+    private final byte delimiter;
+    private final boolean hasHeader;
+    private final boolean isMemoryMapped;
+    private final Map<Integer, ColumnRule> columnMap = new HashMap<>();
+    private final Map<String, ColumnRule> headerMap = new HashMap<>();
+
+    public PJObfuscateFileProcessor(char delimiter, boolean hasHeader, boolean isMemoryMapped)
+    {
+        if (delimiter > 127 || delimiter == QUOTE || delimiter == CR || delimiter == LF)
+            throw new IllegalArgumentException("Delimiter must be an ASCII character other than quote or line break: " + delimiter);
+        this.delimiter = (byte) delimiter;
+        this.hasHeader = hasHeader;
+        this.isMemoryMapped = isMemoryMapped;
+    }
+
+    /**
+     * Sets the rule of the column at the given index, the first column is 0.
+     */
+    public PJObfuscateFileProcessor addColumn(int column, PJObfuscateUtil obfuscateUtil, int mode)
+    {
+        this.columnMap.put(column, new ColumnRule(obfuscateUtil, mode));
+        return this;
+    }
+
+    /**
+     * Sets the rule of the column with the given header, it is only used when the file has a header.
+     */
+    public PJObfuscateFileProcessor addColumn(String header, PJObfuscateUtil obfuscateUtil, int mode)
+    {
+        this.headerMap.put(header, new ColumnRule(obfuscateUtil, mode));
+        return this;
+    }
+
+    /**
+     * Obfuscates the input file into the output file, returns the number of records including the header.
+     */
+    public long process(Path input, Path output) throws IOException
+    {
+        try (FileChannel inputChannel = FileChannel.open(input, StandardOpenOption.READ);
+                FileChannel outputChannel = FileChannel.open(output, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                        StandardOpenOption.TRUNCATE_EXISTING))
+        {
+            if (!this.isMemoryMapped)
+                return process(inputChannel, outputChannel);
+            FileParser parser = new FileParser(outputChannel);
+            long size = inputChannel.size();
+            for (long position = 0; position < size; position += MAPPED_SIZE)
+            {
+                MappedByteBuffer buffer = inputChannel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(MAPPED_SIZE, size - position));
+                parser.parse(buffer);
+            }
+            return parser.finish();
+        }
+    }
+
+    /**
+     * Obfuscates everything read from the input channel into the output channel, returns the number of records
+     * including the header. Channels are not closed.
+     */
+    public long process(ReadableByteChannel input, WritableByteChannel output) throws IOException
+    {
+        FileParser parser = new FileParser(output);
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        while (input.read(buffer) != -1)
+        {
+            buffer.flip();
+            parser.parse(buffer);
+            buffer.clear();
+        }
+        return parser.finish();
+    }
+
+    /**
+     * Same as process(Path, Path) but the file is split into chunks of whole records that are obfuscated in
+     * parallel by the pool, and written in their original order. The current thread reads the file and finds
+     * the record boundaries, at most twice the pool parallelism chunks are in memory at any point in time.
+     */
+    public long process(Path input, Path output, ForkJoinPool pool) throws IOException
+    {
+        return process(input, output, pool, 0, 0, 0, null);
+    }
+
+    /**
+     * Called each time whole records have been written, the output is forced to the disk first. The file can be
+     * resumed from there, inputOffset and outputOffset are the ends of the last record read and written.
+     */
+    interface CheckpointListener
+    {
+        void checkpoint(long inputOffset, long outputOffset, long recordCount) throws IOException;
+    }
+
+    /**
+     * Same as process(Path, Path, ForkJoinPool) but the first inputOffset bytes of the input, recordCount records
+     * which end at outputOffset in the output, are already done. The output is truncated to outputOffset and the
+     * input is read from inputOffset, the header is read again to find the columns but not written. Returns the
+     * number of records of the whole file.
+     */
+    long process(Path input, Path output, ForkJoinPool pool, long inputOffset, long outputOffset, long recordCount, CheckpointListener listener)
+            throws IOException
+    {
+        try (FileChannel inputChannel = FileChannel.open(input, StandardOpenOption.READ);
+                FileChannel outputChannel = FileChannel.open(output, StandardOpenOption.CREATE, StandardOpenOption.WRITE))
+        {
+            outputChannel.truncate(outputOffset);
+            outputChannel.position(outputOffset);
+            FileParser headerParser = new FileParser(inputOffset == 0 ? outputChannel : Channels.newChannel(new ByteArrayOutputStream()));
+            if (inputOffset > 0 && headerParser.isHeader)
+            {
+                byte[] headerArray = new byte[BUFFER_SIZE];
+                int headerLength = 0;
+                int end = 0;
+                while (end <= 0 && headerLength < inputOffset)
+                {
+                    if (headerLength == headerArray.length)
+                        headerArray = Arrays.copyOf(headerArray, headerArray.length * 2);
+                    int read = inputChannel.read(ByteBuffer.wrap(headerArray, headerLength,
+                            (int) Math.min(headerArray.length - headerLength, inputOffset - headerLength)));
+                    if (read < 0)
+                        throw new IOException("The header of " + input + " ends after the resume offset " + inputOffset);
+                    headerLength += read;
+                    end = getRecordEnd(headerArray, headerLength, true);
+                }
+                headerParser.parse(headerArray, 0, end > 0 ? end : headerLength);
+                headerParser.finish();
+            }
+            inputChannel.position(inputOffset);
+            ArrayDeque<ForkJoinTask<FileChunk>> taskQueue = new ArrayDeque<>();
+            // the input offset at the end of each queued chunk
+            ArrayDeque<Long> offsetQueue = new ArrayDeque<>();
+            long chunkOffset = inputOffset;
+            int maxTaskCount = Math.max(2, pool.getParallelism() * 2);
+            byte[] chunkArray = new byte[CHUNK_SIZE];
+            int chunkLength = 0;
+            boolean isEndOfFile = false;
+            while (!isEndOfFile || chunkLength > 0)
+            {
+                if (chunkLength == chunkArray.length)
+                    chunkArray = Arrays.copyOf(chunkArray, chunkArray.length * 2);
+                int read = isEndOfFile ? -1 : inputChannel.read(ByteBuffer.wrap(chunkArray, chunkLength, chunkArray.length - chunkLength));
+                if (read < 0)
+                    isEndOfFile = true;
+                else
+                    chunkLength += read;
+                // the header goes first, it decides the columns of the chunks
+                int end = isEndOfFile ? chunkLength : getRecordEnd(chunkArray, chunkLength, headerParser.isHeader);
+                if (end <= 0 && !isEndOfFile)
+                    continue;
+                chunkOffset += end;
+                if (headerParser.isHeader)
+                {
+                    headerParser.parse(chunkArray, 0, end);
+                    recordCount += headerParser.finish();
+                    checkpoint(listener, chunkOffset, outputChannel, recordCount);
+                } else
+                {
+                    taskQueue.add(pool.submit(new FileChunk(Arrays.copyOf(chunkArray, end), headerParser.columnRules)));
+                    offsetQueue.add(chunkOffset);
+                }
+                System.arraycopy(chunkArray, end, chunkArray, 0, chunkLength - end);
+                chunkLength -= end;
+                while (taskQueue.size() >= maxTaskCount || (isEndOfFile && chunkLength == 0 && !taskQueue.isEmpty()))
+                {
+                    recordCount += write(taskQueue.poll(), outputChannel);
+                    checkpoint(listener, offsetQueue.poll(), outputChannel, recordCount);
+                }
+            }
+            return recordCount;
+        }
+    }
+
+    private static void checkpoint(CheckpointListener listener, long inputOffset, FileChannel outputChannel, long recordCount) throws IOException
+    {
+        if (listener == null)
+            return;
+        outputChannel.force(false);
+        listener.checkpoint(inputOffset, outputChannel.position(), recordCount);
+    }
+
+    /**
+     * Returns the SHA-256 of everything the output depends on: the delimiter, the header flag and the rule of each
+     * column, along with the parameters of its PJObfuscateUtil. Two processors with the same fingerprint write the
+     * same output for the same input.
+     */
+    byte[] getFingerprint()
+    {
+        try
+        {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(new byte[] { this.delimiter, (byte) (this.hasHeader ? 1 : 0) });
+            for (Map.Entry<Integer, ColumnRule> entry : new TreeMap<>(this.columnMap).entrySet())
+                updateFingerprint(digest, entry.getKey().toString(), entry.getValue());
+            for (Map.Entry<String, ColumnRule> entry : new TreeMap<>(this.headerMap).entrySet())
+                updateFingerprint(digest, "\"" + entry.getKey(), entry.getValue());
+            return digest.digest();
+        } catch (NoSuchAlgorithmException e)
+        {
+            // every JVM provides SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void updateFingerprint(MessageDigest digest, String column, ColumnRule rule)
+    {
+        byte[] columnArray = column.getBytes(StandardCharsets.UTF_8);
+        digest.update(ByteBuffer.allocate(8).putInt(columnArray.length).putInt(rule.mode).array());
+        digest.update(columnArray);
+        if (rule.obfuscateUtil != null && rule.mode != PASS_THROUGH)
+            digest.update(rule.obfuscateUtil.getConfigurationFingerprint());
+    }
+
+    /**
+     * Returns the end of the last complete record, or the end of the first record when only the header is needed.
+     * Returns 0 when there is no complete record yet. The array starts with a record, its quotes are followed with
+     * the states of FileParser so that a quote inside an unquoted field is a plain character.
+     */
+    private int getRecordEnd(byte[] array, int length, boolean isFirstRecord)
+    {
+        int state = FIELD_START;
+        int end = 0;
+        for (int i = 0; i < length; i++)
+        {
+            byte b = array[i];
+            state = getNextState(state, b);
+            if (b == LF && state == FIELD_START)
+            {
+                end = i + 1;
+                if (isFirstRecord)
+                    break;
+            }
+        }
+        return end;
+    }
+
+    /**
+     * Returns the state FileParser is in after the byte b, a line feed that leads back to FIELD_START ends a record.
+     */
+    private int getNextState(int state, byte b)
+    {
+        switch (state)
+        {
+        case FIELD_START:
+            return b == QUOTE ? QUOTED : getUnquotedState(b);
+        case QUOTED:
+            return b == QUOTE ? QUOTE_IN_QUOTED : QUOTED;
+        case QUOTE_IN_QUOTED:
+            return b == QUOTE ? QUOTED : getUnquotedState(b);
+        case CR_IN_UNQUOTED:
+            return b == LF ? FIELD_START : getUnquotedState(b);
+        default:
+            return getUnquotedState(b);
+        }
+    }
+
+    private int getUnquotedState(byte b)
+    {
+        if (b == this.delimiter || b == LF)
+            return FIELD_START;
+        return b == CR ? CR_IN_UNQUOTED : UNQUOTED;
+    }
+
+    private static long write(ForkJoinTask<FileChunk> task, WritableByteChannel channel) throws IOException
+    {
+        try
+        {
+            return task.get().write(channel);
+        } catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException e)
+        {
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * Checks that the parallel and the resumed paths write the same bytes as the sequential one, on a file bigger
+     * than a chunk with quotes inside unquoted fields, line feeds inside quoted fields and CRs on their own. Then
+     * checks that nothing after a CR on its own or after a closing quote is copied without being obfuscated.
+     */
+    public static void main(String[] args) throws IOException
+    {
+        Path input = Files.createTempFile("PJObfuscateFileProcessor", ".csv");
+        Path sequentialOutput = Files.createTempFile("PJObfuscateFileProcessor", ".sequential.csv");
+        Path parallelOutput = Files.createTempFile("PJObfuscateFileProcessor", ".parallel.csv");
+        try
+        {
+            StringBuilder content = new StringBuilder("h\"1,h2,h3\na\"b,c,d\n\"x\ny\",z,w\n");
+            for (int i = 0; i < 300000; i++)
+                content.append(i % 7 == 0 ? "Pan\"kaj " + i : i % 11 == 0 ? "Pankaj\rSharma " + i : "Pankaj Sharma " + i).append(',')
+                        .append(i % 3 == 0 ? "\"multi\nline \"\"" + i + "\"\"\"" : i % 13 == 0 ? "\"quoted\"tail " + i : "single " + i).append(',')
+                        .append("pankaj").append(i).append("@gmail.com").append(i % 5 == 0 ? "\r\n" : i % 17 == 0 ? "\r" : "\n");
+            Files.write(input, content.toString().getBytes(StandardCharsets.UTF_8));
+            PJObfuscateFileProcessor processor = new PJObfuscateFileProcessor(',', true, false);
+            processor.addColumn(0, new PJObfuscateUtil(1934233), BY_SPACE);
+            processor.addColumn(1, new PJObfuscateUtil(1934233), WHOLE_VALUE);
+            processor.addColumn("h3", new PJObfuscateUtil(1934233), WHOLE_VALUE);
+
+            long sequentialCount = processor.process(input, sequentialOutput);
+            List<long[]> checkpointList = new ArrayList<>();
+            long parallelCount = processor.process(input, parallelOutput, ForkJoinPool.commonPool(), 0, 0, 0,
+                    (inputOffset, outputOffset, recordCount) -> checkpointList.add(new long[] { inputOffset, outputOffset, recordCount }));
+            byte[] sequentialArray = Files.readAllBytes(sequentialOutput);
+            System.out.println("Sequential - " + sequentialCount + " records, parallel - " + parallelCount + " records");
+            System.out.println("Parallel output is the same - " + Arrays.equals(sequentialArray, Files.readAllBytes(parallelOutput)));
+
+            // resumed from the end of the first chunk, the header is parsed again but not written
+            long[] checkpoint = checkpointList.get(Math.min(1, checkpointList.size() - 1));
+            long resumedCount = processor.process(input, parallelOutput, ForkJoinPool.commonPool(), checkpoint[0], checkpoint[1], checkpoint[2], null);
+            System.out.println("Resumed at " + checkpoint[0] + " - " + resumedCount + " records");
+            System.out.println("Resumed output is the same - " + Arrays.equals(sequentialArray, Files.readAllBytes(parallelOutput)));
+
+            PJObfuscateFileProcessor maskingProcessor = new PJObfuscateFileProcessor(',', false, false);
+            for (int i = 0; i < 3; i++)
+                maskingProcessor.addColumn(i, new PJObfuscateUtil(1934233), BY_SPACE);
+            String embeddedOutput = process(maskingProcessor, "John\rSmith,\"Jane\"Smith,Doe\rSmith\r\nJohn\r\"Smith\",Jane\r\r\n");
+            System.out.println("CR inside fields and text after a quote are obfuscated - " + !embeddedOutput.contains("Smith")
+                    + " " + embeddedOutput.replace("\r", "\\r").replace("\n", "\\n"));
+            // with CR only line endings the file is a single record, a line goes on in the field of the next one
+            String crOnlyOutput = process(maskingProcessor, "John Smith,123-45-6789\rJane Doe,987-65-4321\r");
+            System.out.println("CR only line endings are obfuscated - " + !crOnlyOutput.contains("Smith") + " " + !crOnlyOutput.contains("Jane")
+                    + " " + !crOnlyOutput.contains("6789") + " " + crOnlyOutput.replace("\r", "\\r"));
+        } finally
+        {
+            Files.deleteIfExists(input);
+            Files.deleteIfExists(sequentialOutput);
+            Files.deleteIfExists(parallelOutput);
+        }
+    }
+
+    private static String process(PJObfuscateFileProcessor processor, String input) throws IOException
+    {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        processor.process(Channels.newChannel(new ByteArrayInputStream(input.getBytes(StandardCharsets.UTF_8))), Channels.newChannel(output));
+        return new String(output.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Whole records obfuscated by one worker of the pool into a buffer of its own.
+     */
+    private final class FileChunk implements Callable<FileChunk>
+    {
+        private final byte[] chunkArray;
+        private final ColumnRule[] columnRules;
+        private final ByteArrayOutputStream outputStream;
+        private long recordCount;
+
+        private FileChunk(byte[] chunkArray, ColumnRule[] columnRules)
+        {
+            this.chunkArray = chunkArray;
+            this.columnRules = columnRules;
+            this.outputStream = new ByteArrayOutputStream(chunkArray.length + chunkArray.length / 8);
+        }
+
+        @Override
+        public FileChunk call() throws IOException
+        {
+            FileParser parser = new FileParser(Channels.newChannel(this.outputStream), this.columnRules);
+            parser.parse(this.chunkArray, 0, this.chunkArray.length);
+            this.recordCount = parser.finish();
+            return this;
+        }
+
+        private long write(WritableByteChannel channel) throws IOException
+        {
+            this.outputStream.writeTo(Channels.newOutputStream(channel));
+            return this.recordCount;
+        }
+    }
+
+    private static final class ColumnRule
+    {
+        private final PJObfuscateUtil obfuscateUtil;
+        private final int mode;
+
+        private ColumnRule(PJObfuscateUtil obfuscateUtil, int mode)
+        {
+            if (mode != PASS_THROUGH && mode != WHOLE_VALUE && mode != BY_SPACE)
+                throw new IllegalArgumentException("Unknown mode: " + mode);
+            if (obfuscateUtil == null && mode != PASS_THROUGH)
+                throw new IllegalArgumentException("PJObfuscateUtil is mandatory unless the mode is PASS_THROUGH");
+            this.obfuscateUtil = obfuscateUtil;
+            this.mode = mode;
+        }
+    }
+
+    /**
+     * Holds everything needed to parse one file, fields are processed byte by byte and the state is kept between
+     * two buffers so a field may span any number of buffers.
+     */
+    private final class FileParser
+    {
+        private final WritableByteChannel channel;
+        private byte[] inputArray = null;
+        private final ByteBuffer outputBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+        private ColumnRule[] columnRules = null;
+        private byte[] fieldArray = new byte[256];
+        private byte[] obfuscatedArray = new byte[768];
+        private int fieldLength = 0;
+        private int state = FIELD_START;
+        private int column = 0;
+        private boolean isQuoted = false;
+        private boolean isHeader;
+        private ColumnRule rule = null;
+        private long recordCount = 0;
+
+        private FileParser(WritableByteChannel channel)
+        {
+            this.channel = channel;
+            this.isHeader = hasHeader;
+            if (!hasHeader)
+                prepareColumnRules(null);
+        }
+
+        private FileParser(WritableByteChannel channel, ColumnRule[] columnRules)
+        {
+            this.channel = channel;
+            this.isHeader = false;
+            this.columnRules = columnRules;
+        }
+
+        private void parse(ByteBuffer input) throws IOException
+        {
+            if (input.hasArray())
+                parse(input.array(), input.arrayOffset() + input.position(), input.arrayOffset() + input.limit());
+            else
+                while (input.hasRemaining())
+                { // one bulk copy is much faster than reading the mapped buffer byte by byte
+                    if (this.inputArray == null)
+                        this.inputArray = new byte[BUFFER_SIZE];
+                    int length = Math.min(input.remaining(), this.inputArray.length);
+                    input.get(this.inputArray, 0, length);
+                    parse(this.inputArray, 0, length);
+                }
+            input.position(input.limit());
+        }
+
+        private void parse(byte[] input, int from, int to) throws IOException
+        {
+            for (int i = from; i < to; i++)
+            {
+                byte b = input[i];
+                switch (this.state)
+                {
+                case FIELD_START:
+                    this.rule = getColumnRule();
+                    this.isQuoted = b == QUOTE;
+                    if (this.isQuoted)
+                    {
+                        this.state = QUOTED;
+                        if (this.rule == null)
+                            write(b);
+                        break;
+                    }
+                    this.state = UNQUOTED;
+                    i = parseUnquoted(input, i, to);
+                    break;
+                case UNQUOTED:
+                    i = parseUnquoted(input, i, to);
+                    break;
+                case QUOTED:
+                    if (b == QUOTE)
+                        this.state = QUOTE_IN_QUOTED;
+                    else
+                    {
+                        int end = i + 1;
+                        while (end < to && input[end] != QUOTE)
+                            end++;
+                        append(input, i, end);
+                        i = end - 1;
+                    }
+                    break;
+                case QUOTE_IN_QUOTED:
+                    if (b == QUOTE)
+                    { // escaped quote, written twice when the field is copied as it is
+                        this.state = QUOTED;
+                        if (this.rule == null)
+                            write(b);
+                        append(input, i, i + 1);
+                    } else
+                    { // the closing quote, whatever follows it up to the end of the field is part of the field
+                        if (this.rule == null)
+                            write(QUOTE);
+                        this.state = UNQUOTED;
+                        i = parseUnquoted(input, i, to);
+                    }
+                    break;
+                default:
+                    // a CR only ends the field when a line feed follows it, otherwise it is part of the field
+                    if (b == LF)
+                    {
+                        endUnquoted();
+                        write(CR);
+                        parseFieldEnd(b);
+                    } else
+                    {
+                        this.state = UNQUOTED;
+                        append(CR_ARRAY, 0, 1);
+                        i = parseUnquoted(input, i, to);
+                    }
+                    break;
+                }
+            }
+        }
+
+        /**
+         * Appends the bytes of an unquoted field, or of a quoted one after its closing quote, up to the next
+         * delimiter, line feed or CR, or ends the field when input[i] is one of them. Returns the index of the last
+         * byte parsed.
+         */
+        private int parseUnquoted(byte[] input, int i, int to) throws IOException
+        {
+            byte b = input[i];
+            if (b == delimiter || b == LF)
+            {
+                endUnquoted();
+                parseFieldEnd(b);
+                return i;
+            }
+            if (b == CR)
+            {
+                this.state = CR_IN_UNQUOTED;
+                return i;
+            }
+            int end = i + 1;
+            while (end < to && input[end] != delimiter && input[end] != LF && input[end] != CR)
+                end++;
+            append(input, i, end);
+            return end - 1;
+        }
+
+        /**
+         * Ends a field in the UNQUOTED state, the closing quote of a quoted field that was copied as it is has already
+         * been written.
+         */
+        private void endUnquoted() throws IOException
+        {
+            endField(this.isQuoted && this.rule != null);
+        }
+
+        /**
+         * The delimiter or the line feed that ends a field.
+         */
+        private void parseFieldEnd(byte b) throws IOException
+        {
+            write(b);
+            if (b == delimiter)
+                this.column++;
+            else
+                endRecord();
+            this.state = FIELD_START;
+        }
+
+        private void endRecord()
+        {
+            if (this.isHeader)
+            {
+                this.isHeader = false;
+                prepareColumnRules(this.columnRules);
+            }
+            this.column = 0;
+            this.recordCount++;
+        }
+
+        private long finish() throws IOException
+        {
+            if (this.state == CR_IN_UNQUOTED)
+            {
+                this.state = UNQUOTED;
+                append(CR_ARRAY, 0, 1);
+            }
+            if (this.state == QUOTED)
+                endField(false);
+            else if (this.state == QUOTE_IN_QUOTED)
+                endField(true);
+            else if (this.state == UNQUOTED)
+                endUnquoted();
+            if (this.state != FIELD_START || this.column > 0)
+                endRecord();
+            flush();
+            return this.recordCount;
+        }
+
+        private ColumnRule getColumnRule()
+        {
+            if (this.isHeader || this.column >= this.columnRules.length)
+                return null;
+            return this.columnRules[this.column];
+        }
+
+        /**
+         * Merges the rules by index with the rules by header name, headerRules holds the rules found in the header.
+         */
+        private void prepareColumnRules(ColumnRule[] headerRules)
+        {
+            int size = headerRules == null ? 0 : headerRules.length;
+            for (Integer index : columnMap.keySet())
+                size = Math.max(size, index + 1);
+            ColumnRule[] rules = new ColumnRule[size];
+            if (headerRules != null)
+                System.arraycopy(headerRules, 0, rules, 0, headerRules.length);
+            for (Map.Entry<Integer, ColumnRule> entry : columnMap.entrySet())
+                if (entry.getKey() >= 0)
+                    rules[entry.getKey()] = entry.getValue();
+            for (int i = 0; i < rules.length; i++)
+                if (rules[i] != null && rules[i].mode == PASS_THROUGH)
+                    rules[i] = null;
+            this.columnRules = rules;
+        }
+
+        private void append(byte[] input, int from, int to) throws IOException
+        {
+            if (this.rule == null)
+            {
+                write(input, from, to);
+                // the header is copied as it is but its fields are also kept to find the columns by name
+                if (!this.isHeader)
+                    return;
+            }
+            int length = to - from;
+            if (this.fieldLength + length > this.fieldArray.length)
+                this.fieldArray = Arrays.copyOf(this.fieldArray, Math.max(this.fieldLength + length, this.fieldArray.length * 2));
+            System.arraycopy(input, from, this.fieldArray, this.fieldLength, length);
+            this.fieldLength += length;
+        }
+
+        private void endField(boolean isClosed) throws IOException
+        {
+            if (this.isHeader)
+            {
+                if (isClosed)
+                    write(QUOTE);
+                String header = new String(this.fieldArray, 0, this.fieldLength, StandardCharsets.UTF_8);
+                ColumnRule headerRule = headerMap.get(header);
+                if (headerRule != null)
+                {
+                    if (this.columnRules == null || this.columnRules.length <= this.column)
+                        this.columnRules = this.columnRules == null ? new ColumnRule[this.column + 1]
+                                : Arrays.copyOf(this.columnRules, this.column + 1);
+                    this.columnRules[this.column] = headerRule;
+                }
+            } else if (this.rule == null)
+            {
+                if (isClosed)
+                    write(QUOTE);
+            } else
+                writeObfuscated(isClosed);
+            this.fieldLength = 0;
+        }
+
+        private void writeObfuscated(boolean isClosed) throws IOException
+        {
+            // a character may be replaced with one that is encoded on more bytes
+            if (this.fieldLength * 3 > this.obfuscatedArray.length)
+                this.obfuscatedArray = new byte[Math.max(this.fieldLength * 3, this.obfuscatedArray.length * 2)];
+            int length = 0;
+            if (this.rule.mode == BY_SPACE)
+                length = this.rule.obfuscateUtil.getObfuscatedUtf8ByDelimiter(this.fieldArray, 0, this.fieldLength, this.obfuscatedArray, 0,
+                        PJObfuscateUtil.SPACE_DELIMITERS);
+            else
+                length = this.rule.obfuscateUtil.getObfuscatedUtf8(this.fieldArray, 0, this.fieldLength, this.obfuscatedArray, 0);
+            // the quote, the delimiter and the line breaks are ASCII, they are never part of a multi-byte sequence
+            boolean isQuoteNeeded = this.isQuoted;
+            boolean hasQuote = false;
+            for (int i = 0; i < length; i++)
+            {
+                byte b = this.obfuscatedArray[i];
+                if (b == QUOTE)
+                {
+                    hasQuote = true;
+                    isQuoteNeeded = true;
+                } else if (b == delimiter || b == CR || b == LF)
+                    isQuoteNeeded = true;
+            }
+            if (isQuoteNeeded)
+                write(QUOTE);
+            if (hasQuote)
+            {
+                int from = 0;
+                for (int i = 0; i < length; i++)
+                    if (this.obfuscatedArray[i] == QUOTE)
+                    {
+                        write(this.obfuscatedArray, from, i + 1);
+                        write(QUOTE);
+                        from = i + 1;
+                    }
+                write(this.obfuscatedArray, from, length);
+            } else
+                write(this.obfuscatedArray, 0, length);
+            // an unterminated quoted field at the end of the file stays unterminated
+            if (isQuoteNeeded && (isClosed || !this.isQuoted))
+                write(QUOTE);
+        }
+
+        private void write(byte b) throws IOException
+        {
+            if (!this.outputBuffer.hasRemaining())
+                flush();
+            this.outputBuffer.put(b);
+        }
+
+        private void write(byte[] input, int from, int to) throws IOException
+        {
+            while (from < to)
+            {
+                if (!this.outputBuffer.hasRemaining())
+                    flush();
+                int length = Math.min(to - from, this.outputBuffer.remaining());
+                this.outputBuffer.put(input, from, length);
+                from += length;
+            }
+        }
+
+        private void flush() throws IOException
+        {
+            this.outputBuffer.flip();
+            while (this.outputBuffer.hasRemaining())
+                this.channel.write(this.outputBuffer);
+            this.outputBuffer.clear();
+        }
+    }
+}
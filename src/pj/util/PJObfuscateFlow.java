@@ -0,0 +1,66 @@
+package pj.util;
+
+/**
+ *
+ *         The interfaces of a stream of records with backpressure, see PJObfuscateFlowProcessor. They have the same
+ *         methods and the same contract as their java.util.concurrent.Flow counterparts of Java 9 and later, and as
+ *         the Reactive Streams specification: -
+ *              - a Subscriber receives onSubscribe first, then any number of onNext up to what it requested through
+ *                its Subscription, then at most one of onComplete or onError, the signals never overlap
+ *              - request(long) with zero or a negative count is answered with onError(IllegalArgumentException)
+ *              - after cancel() no more records are requested, a few records already on their way may still arrive
+ *
+ *         The utility compiles for Java 8 so it cannot use java.util.concurrent.Flow, an adapter is one method
+ *         reference per method.
+ *
+ *         Here is an example: -
+ *         Flow.Subscriber<String> sink = ...;
+ *         processor.subscribe(new PJObfuscateFlow.Subscriber<String>()
+ *         {
+ *             public void onSubscribe(PJObfuscateFlow.Subscription subscription)
+ *             {
+ *                 sink.onSubscribe(new Flow.Subscription()
+ *                 {
+ *                     public void request(long count) { subscription.request(count); }
+ *                     public void cancel() { subscription.cancel(); }
+ *                 });
+ *             }
+ *             public void onNext(String item) { sink.onNext(item); }
+ *             public void onError(Throwable throwable) { sink.onError(throwable); }
+ *             public void onComplete() { sink.onComplete(); }
+ *         });
+ */
+
+public final class PJObfuscateFlow
+{
+    private PJObfuscateFlow()
+    {
+    }
+
+    public interface Publisher<T>
+    {
+        void subscribe(Subscriber<? super T> subscriber);
+    }
+
+    public interface Subscriber<T>
+    {
+        void onSubscribe(Subscription subscription);
+
+        void onNext(T item);
+
+        void onError(Throwable throwable);
+
+        void onComplete();
+    }
+
+    public interface Subscription
+    {
+        void request(long count);
+
+        void cancel();
+    }
+
+    public interface Processor<T, R> extends Subscriber<T>, Publisher<R>
+    {
+    }
+}
@@ -0,0 +1,625 @@
+package pj.util;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ *
+ *         Obfuscates a stream of records between a publisher and a subscriber, see PJObfuscateFlow for the contract.
+ *         The processor subscribes to the records, obfuscates them by batches on a mapping executor and delivers them
+ *         in the same order on a delivery executor, only as fast as its subscriber requests them: -
+ *              - at most bufferSize records wait to be obfuscated, the processor never requests more from the
+ *                publisher, a slow subscriber slows the publisher down instead of filling the memory
+ *              - at most bufferSize obfuscated records wait to be delivered, a batch is not started without room for it
+ *              - a batch takes the records that are waiting, up to batchSize, under a light load a record is
+ *                obfuscated as soon as it arrives and under a heavy load a task obfuscates batchSize records
+ *              - at most parallelism batches are obfuscated at the same time
+ *         Each record is obfuscated on its own, exactly as if getObfuscated(String) or getObfuscatedBySpace(String) was
+ *         called for it, depending on the mode: -
+ *              WHOLE_VALUE : the record is obfuscated with getObfuscated(String)
+ *              BY_SPACE : the record is obfuscated with getObfuscatedBySpace(String)
+ *
+ *         Obfuscation is bound by the CPU and runs best on as many platform threads as there are cores, see
+ *         newMappingExecutor(int). Sources and sinks are usually bound by I/O and block, they run best on virtual
+ *         threads, see newVirtualThreadExecutor() and newPublisher(Iterator, Executor), a blocked subscriber then
+ *         holds no platform thread and never holds up the obfuscation of the other streams.
+ *
+ *         Here is an example: -
+ *         ExecutorService mappingExecutor = PJObfuscateFlowProcessor.newMappingExecutor(Runtime.getRuntime().availableProcessors());
+ *         ExecutorService ioExecutor = PJObfuscateFlowProcessor.newVirtualThreadExecutor();
+ *         PJObfuscateFlowProcessor processor = new PJObfuscateFlowProcessor(new PJObfuscateUtil(1934233), PJObfuscateFlowProcessor.WHOLE_VALUE,
+ *                 1024, 64, 4, mappingExecutor, ioExecutor);
+ *         PJObfuscateFlowProcessor.newPublisher(reader.lines().iterator(), ioExecutor).subscribe(processor);
+ *         processor.subscribe(sink);
+ *
+ *         A processor is used for a single stream and accepts a single subscriber, the executors can be shared by any
+ *         number of processors.
+ */
+
+public final class PJObfuscateFlowProcessor implements PJObfuscateFlow.Processor<String, String>
+{
+    public static final int WHOLE_VALUE = 1;
+    public static final int BY_SPACE = 2;
+
+    private static final int DEFAULT_BUFFER_SIZE = 1024;
+    private static final int DEFAULT_BATCH_SIZE = 64;
+
+    private final PJObfuscateUtil obfuscateUtil;
+    private final int mode;
+    private final int bufferSize;
+    private final int batchSize;
+    private final int parallelism;
+    private final Executor mappingExecutor;
+    private final Executor deliveryExecutor;
+
+    // all guarded by this
+    private PJObfuscateFlow.Subscription upstream = null;
+    private long upstreamDemand = 0;
+    private boolean isUpstreamDone = false;
+    private final ArrayDeque<String> inputQueue = new ArrayDeque<>();
+    private final ArrayDeque<Batch> outputQueue = new ArrayDeque<>();
+    private int outputCount = 0;
+    private int runningBatchCount = 0;
+    private PJObfuscateFlow.Subscriber<? super String> downstream = null;
+    private boolean isSubscribed = false;
+    private long downstreamDemand = 0;
+    private boolean isDelivering = false;
+    private boolean isTerminated = false;
+    private Throwable error = null;
+
+    /**
+     * Obfuscates and delivers on the common ForkJoinPool, the subscriber must not block.
+     */
+    public PJObfuscateFlowProcessor(PJObfuscateUtil obfuscateUtil, int mode)
+    {
+        this(obfuscateUtil, mode, DEFAULT_BUFFER_SIZE, DEFAULT_BATCH_SIZE, ForkJoinPool.getCommonPoolParallelism(),
+                ForkJoinPool.commonPool(), ForkJoinPool.commonPool());
+    }
+
+    /**
+     * bufferSize is the number of records that can wait to be obfuscated and the number of obfuscated records that
+     * can wait to be delivered, batchSize the most records a task obfuscates and parallelism the most tasks that run
+     * at the same time on the mapping executor.
+     */
+    public PJObfuscateFlowProcessor(PJObfuscateUtil obfuscateUtil, int mode, int bufferSize, int batchSize, int parallelism,
+            Executor mappingExecutor, Executor deliveryExecutor)
+    {
+        if (obfuscateUtil == null || mappingExecutor == null || deliveryExecutor == null)
+            throw new IllegalArgumentException("PJObfuscateUtil and executors are mandatory");
+        if (mode != WHOLE_VALUE && mode != BY_SPACE)
+            throw new IllegalArgumentException("Illegal mode: " + mode);
+        if (batchSize < 1 || bufferSize < batchSize || parallelism < 1)
+            throw new IllegalArgumentException("Illegal bufferSize, batchSize or parallelism: " + bufferSize + ", " + batchSize + ", " + parallelism);
+        this.obfuscateUtil = obfuscateUtil;
+        this.mode = mode;
+        this.bufferSize = bufferSize;
+        this.batchSize = batchSize;
+        this.parallelism = parallelism;
+        this.mappingExecutor = mappingExecutor;
+        this.deliveryExecutor = deliveryExecutor;
+    }
+
+    /**
+     * Returns a fixed pool of threadCount daemon platform threads to obfuscate the records.
+     */
+    public static ExecutorService newMappingExecutor(int threadCount)
+    {
+        return Executors.newFixedThreadPool(threadCount, newThreadFactory("PJObfuscateFlowProcessor-mapping-"));
+    }
+
+    /**
+     * Returns an executor that starts a virtual thread per task when the JVM has them, Java 21 and later, and an
+     * unbounded pool of daemon platform threads otherwise. It is looked up at run time, the utility still compiles
+     * and runs on Java 8.
+     */
+    public static ExecutorService newVirtualThreadExecutor()
+    {
+        try
+        {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e)
+        {
+            // before Java 21, or Java 19 and 20 without --enable-preview
+            return Executors.newCachedThreadPool(newThreadFactory("PJObfuscateFlowProcessor-io-"));
+        }
+    }
+
+    private static ThreadFactory newThreadFactory(String prefix)
+    {
+        AtomicInteger threadCount = new AtomicInteger();
+        return runnable ->
+        {
+            Thread thread = new Thread(runnable, prefix + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * Returns a publisher of the values of the iterator for a single subscriber. The iterator is only read on the
+     * executor and only when the subscriber requested more records, it can block, reading the lines of a socket for
+     * instance, preferably on virtual threads.
+     */
+    public static PJObfuscateFlow.Publisher<String> newPublisher(Iterator<String> source, Executor executor)
+    {
+        if (source == null || executor == null)
+            throw new IllegalArgumentException("Iterator and executor are mandatory");
+        return new IteratorPublisher(source, executor);
+    }
+
+    @Override
+    public void onSubscribe(PJObfuscateFlow.Subscription subscription)
+    {
+        if (subscription == null)
+            throw new NullPointerException("subscription");
+        boolean isAccepted = false;
+        synchronized (this)
+        {
+            if (this.upstream == null && !this.isUpstreamDone && !this.isTerminated)
+            {
+                this.upstream = subscription;
+                this.upstreamDemand = this.bufferSize;
+                isAccepted = true;
+            }
+        }
+        if (isAccepted)
+            subscription.request(this.bufferSize);
+        else
+            subscription.cancel();
+    }
+
+    @Override
+    public void onNext(String item)
+    {
+        if (item == null)
+            throw new NullPointerException("item");
+        boolean isOverflow = false;
+        synchronized (this)
+        {
+            if (this.isUpstreamDone || this.isTerminated)
+                return;
+            if (this.upstreamDemand == 0)
+                isOverflow = true;
+            else
+            {
+                this.upstreamDemand--;
+                this.inputQueue.add(item);
+            }
+        }
+        if (isOverflow)
+            fail(new IllegalStateException("The publisher sent more records than requested"), true);
+        else
+            schedule();
+    }
+
+    @Override
+    public void onError(Throwable throwable)
+    {
+        if (throwable == null)
+            throw new NullPointerException("throwable");
+        fail(throwable, false);
+    }
+
+    @Override
+    public void onComplete()
+    {
+        synchronized (this)
+        {
+            this.isUpstreamDone = true;
+        }
+        deliver();
+    }
+
+    @Override
+    public void subscribe(PJObfuscateFlow.Subscriber<? super String> subscriber)
+    {
+        if (subscriber == null)
+            throw new NullPointerException("subscriber");
+        boolean isAccepted = false;
+        synchronized (this)
+        {
+            if (this.downstream == null)
+            {
+                this.downstream = subscriber;
+                isAccepted = true;
+            }
+        }
+        if (!isAccepted)
+        {
+            subscriber.onSubscribe(new CancelledSubscription());
+            subscriber.onError(new IllegalStateException("PJObfuscateFlowProcessor accepts a single subscriber"));
+            return;
+        }
+        subscriber.onSubscribe(new DownstreamSubscription());
+        // no signal may overlap onSubscribe, the records requested meanwhile are delivered from here on
+        synchronized (this)
+        {
+            this.isSubscribed = true;
+        }
+        deliver();
+    }
+
+    /**
+     * Starts the batches there is room for, and requests again from the publisher the records they take.
+     */
+    private void schedule()
+    {
+        while (true)
+        {
+            Batch batch = null;
+            PJObfuscateFlow.Subscription subscription = null;
+            synchronized (this)
+            {
+                if (this.error != null || this.isTerminated || this.runningBatchCount == this.parallelism || this.inputQueue.isEmpty())
+                    return;
+                int size = Math.min(this.batchSize, this.inputQueue.size());
+                if (this.outputCount + size > this.bufferSize)
+                    return;
+                batch = new Batch(size);
+                for (int i = 0; i < size; i++)
+                    batch.values[i] = this.inputQueue.poll();
+                this.outputQueue.add(batch);
+                this.outputCount += size;
+                this.runningBatchCount++;
+                if (!this.isUpstreamDone)
+                {
+                    this.upstreamDemand += size;
+                    subscription = this.upstream;
+                }
+            }
+            if (subscription != null)
+                subscription.request(batch.values.length);
+            Batch runningBatch = batch;
+            try
+            {
+                this.mappingExecutor.execute(() -> obfuscate(runningBatch));
+            } catch (RejectedExecutionException e)
+            {
+                fail(e, true);
+                return;
+            }
+        }
+    }
+
+    private void obfuscate(Batch batch)
+    {
+        RuntimeException failure = null;
+        try
+        {
+            String[] values = batch.values;
+            for (int i = 0; i < values.length; i++)
+                values[i] = this.mode == BY_SPACE ? this.obfuscateUtil.getObfuscatedBySpace(values[i]) : this.obfuscateUtil.getObfuscated(values[i]);
+        } catch (RuntimeException e)
+        {
+            failure = e;
+        }
+        synchronized (this)
+        {
+            this.runningBatchCount--;
+            batch.isDone = true;
+        }
+        if (failure != null)
+            fail(failure, true);
+        else
+        {
+            schedule();
+            deliver();
+        }
+    }
+
+    /**
+     * Drops the records that are waiting and passes the error on to the subscriber, the first error wins.
+     */
+    private void fail(Throwable throwable, boolean isCancelUpstream)
+    {
+        PJObfuscateFlow.Subscription subscription = null;
+        synchronized (this)
+        {
+            if (this.error != null || this.isTerminated)
+                return;
+            this.error = throwable;
+            this.inputQueue.clear();
+            this.outputQueue.clear();
+            this.outputCount = 0;
+            if (isCancelUpstream && !this.isUpstreamDone)
+                subscription = this.upstream;
+            this.isUpstreamDone = true;
+        }
+        if (subscription != null)
+            subscription.cancel();
+        deliver();
+    }
+
+    /**
+     * Starts delivering on the delivery executor when there is something to deliver and no delivery is running, so
+     * that the signals to the subscriber never overlap.
+     */
+    private void deliver()
+    {
+        PJObfuscateFlow.Subscriber<? super String> subscriber;
+        synchronized (this)
+        {
+            if (this.isDelivering || !this.isSubscribed || this.isTerminated || !hasSignal())
+                return;
+            this.isDelivering = true;
+            subscriber = this.downstream;
+        }
+        try
+        {
+            this.deliveryExecutor.execute(this::runDelivery);
+        } catch (RejectedExecutionException e)
+        {
+            PJObfuscateFlow.Subscription subscription;
+            synchronized (this)
+            {
+                this.isTerminated = true;
+                subscription = this.isUpstreamDone ? null : this.upstream;
+            }
+            if (subscription != null)
+                subscription.cancel();
+            subscriber.onError(e);
+        }
+    }
+
+    // guarded by this
+    private boolean hasSignal()
+    {
+        if (this.error != null || this.isUpstreamDone && this.inputQueue.isEmpty() && this.outputQueue.isEmpty())
+            return true;
+        Batch batch = this.outputQueue.peek();
+        return this.downstreamDemand > 0 && batch != null && batch.isDone;
+    }
+
+    private void runDelivery()
+    {
+        PJObfuscateFlow.Subscriber<? super String> subscriber = this.downstream;
+        while (true)
+        {
+            String[] values = null;
+            int from = 0;
+            int to = 0;
+            Throwable failure = null;
+            synchronized (this)
+            {
+                if (this.isTerminated)
+                    return;
+                Batch batch = this.outputQueue.peek();
+                if (this.error != null)
+                {
+                    this.isTerminated = true;
+                    failure = this.error;
+                } else if (this.downstreamDemand > 0 && batch != null && batch.isDone)
+                {
+                    values = batch.values;
+                    from = batch.deliveredCount;
+                    to = from + (int) Math.min(this.downstreamDemand, values.length - from);
+                    batch.deliveredCount = to;
+                    if (to == values.length)
+                        this.outputQueue.poll();
+                    this.outputCount -= to - from;
+                    this.downstreamDemand -= to - from;
+                } else if (this.isUpstreamDone && this.inputQueue.isEmpty() && this.outputQueue.isEmpty())
+                    this.isTerminated = true;
+                else
+                {
+                    this.isDelivering = false;
+                    return;
+                }
+            }
+            if (failure != null)
+            {
+                subscriber.onError(failure);
+                return;
+            }
+            if (values == null)
+            {
+                subscriber.onComplete();
+                return;
+            }
+            try
+            {
+                for (int i = from; i < to; i++)
+                {
+                    subscriber.onNext(values[i]);
+                    values[i] = null;
+                }
+            } catch (RuntimeException e)
+            {
+                // a subscriber must not throw, the stream is cancelled as if it did
+                cancel();
+                return;
+            }
+            schedule();
+        }
+    }
+
+    private void cancel()
+    {
+        PJObfuscateFlow.Subscription subscription;
+        synchronized (this)
+        {
+            if (this.isTerminated)
+                return;
+            this.isTerminated = true;
+            this.inputQueue.clear();
+            this.outputQueue.clear();
+            this.outputCount = 0;
+            subscription = this.isUpstreamDone ? null : this.upstream;
+            this.isUpstreamDone = true;
+        }
+        if (subscription != null)
+            subscription.cancel();
+    }
+
+    private static final class Batch
+    {
+        private final String[] values;
+        private int deliveredCount = 0;
+        private boolean isDone = false;
+
+        private Batch(int size)
+        {
+            this.values = new String[size];
+        }
+    }
+
+    private final class DownstreamSubscription implements PJObfuscateFlow.Subscription
+    {
+        @Override
+        public void request(long count)
+        {
+            if (count <= 0)
+            {
+                fail(new IllegalArgumentException("Illegal request: " + count), true);
+                return;
+            }
+            synchronized (PJObfuscateFlowProcessor.this)
+            {
+                long demand = PJObfuscateFlowProcessor.this.downstreamDemand + count;
+                PJObfuscateFlowProcessor.this.downstreamDemand = demand < 0 ? Long.MAX_VALUE : demand;
+            }
+            deliver();
+        }
+
+        @Override
+        public void cancel()
+        {
+            PJObfuscateFlowProcessor.this.cancel();
+        }
+    }
+
+    private static final class CancelledSubscription implements PJObfuscateFlow.Subscription
+    {
+        @Override
+        public void request(long count)
+        {
+        }
+
+        @Override
+        public void cancel()
+        {
+        }
+    }
+
+    private static final class IteratorPublisher implements PJObfuscateFlow.Publisher<String>, PJObfuscateFlow.Subscription, Runnable
+    {
+        private final Iterator<String> source;
+        private final Executor executor;
+        private final AtomicBoolean isSubscribed = new AtomicBoolean();
+        private final AtomicLong demand = new AtomicLong();
+        private PJObfuscateFlow.Subscriber<? super String> subscriber = null;
+        private volatile boolean isCancelled = false;
+        private volatile long illegalCount = 0;
+
+        private IteratorPublisher(Iterator<String> source, Executor executor)
+        {
+            this.source = source;
+            this.executor = executor;
+        }
+
+        @Override
+        public void subscribe(PJObfuscateFlow.Subscriber<? super String> subscriber)
+        {
+            if (subscriber == null)
+                throw new NullPointerException("subscriber");
+            if (!this.isSubscribed.compareAndSet(false, true))
+            {
+                subscriber.onSubscribe(new CancelledSubscription());
+                subscriber.onError(new IllegalStateException("The iterator can be published to a single subscriber"));
+                return;
+            }
+            this.subscriber = subscriber;
+            subscriber.onSubscribe(this);
+        }
+
+        @Override
+        public void request(long count)
+        {
+            if (count <= 0)
+            {
+                // reported by the running reader, so that the signals never overlap
+                this.illegalCount = count;
+                count = 1;
+            }
+            long previous;
+            long next;
+            do
+            {
+                previous = this.demand.get();
+                next = previous + count < 0 ? Long.MAX_VALUE : previous + count;
+            } while (!this.demand.compareAndSet(previous, next));
+            if (previous == 0)
+                try
+                {
+                    this.executor.execute(this);
+                } catch (RejectedExecutionException e)
+                {
+                    this.isCancelled = true;
+                    this.subscriber.onError(e);
+                }
+        }
+
+        @Override
+        public void cancel()
+        {
+            this.isCancelled = true;
+        }
+
+        /**
+         * Reads as many values as requested, a single run at a time.
+         */
+        @Override
+        public void run()
+        {
+            try
+            {
+                long requested = this.demand.get();
+                while (true)
+                {
+                    if (this.isCancelled)
+                        return;
+                    if (this.illegalCount != 0)
+                    {
+                        this.isCancelled = true;
+                        this.subscriber.onError(new IllegalArgumentException("Illegal request: " + this.illegalCount));
+                        return;
+                    }
+                    long emitted = 0;
+                    while (emitted < requested && !this.isCancelled && this.source.hasNext())
+                    {
+                        this.subscriber.onNext(this.source.next());
+                        emitted++;
+                    }
+                    if (this.isCancelled)
+                        return;
+                    // the end of the source is signalled even when nothing more was requested
+                    if (!this.source.hasNext())
+                    {
+                        this.isCancelled = true;
+                        this.subscriber.onComplete();
+                        return;
+                    }
+                    requested = this.demand.addAndGet(-emitted);
+                    if (requested == 0)
+                        return;
+                }
+            } catch (RuntimeException e)
+            {
+                if (!this.isCancelled)
+                {
+                    this.isCancelled = true;
+                    this.subscriber.onError(e);
+                }
+            }
+        }
+    }
+}
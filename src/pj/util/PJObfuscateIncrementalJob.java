@@ -0,0 +1,307 @@
+package pj.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ *
+ *         Obfuscates a directory of delimited files into another directory with a PJObfuscateFileProcessor, and keeps
+ *         a checkpoint file so that a run can be resumed after a crash and the next runs only process what changed.
+ *         Each regular file of the input directory is a partition, it is written with the same name into the output
+ *         directory.
+ *
+ *         The checkpoint file holds the fingerprint of the processor, its delimiter, its header flag, its column
+ *         rules and the parameters of their PJObfuscateUtil instances, along with the state of each input file:
+ *              - a file that was completely processed is skipped as long as it has not changed and its output still
+ *                exists, a file has changed when its size or its modification time changed, or with CONTENT_HASH when
+ *                its size or the SHA-256 of its content changed
+ *              - a file whose processing was interrupted is resumed from its last checkpoint, the end of the last
+ *                records written, as long as it has not changed
+ *              - any other file is processed from the start
+ *         When the fingerprint changes, the class or the parameters changed and every file is processed again. The
+ *         output of an input file that was removed is removed as well.
+ *
+ *         Here is an example: -
+ *         PJObfuscateFileProcessor processor = new PJObfuscateFileProcessor(',', true, false);
+ *         processor.addColumn("email", new PJObfuscateUtil(1934233), PJObfuscateFileProcessor.WHOLE_VALUE);
+ *         PJObfuscateIncrementalJob job = new PJObfuscateIncrementalJob(processor, Paths.get("customers.checkpoint"), PJObfuscateIncrementalJob.SIZE_AND_TIME);
+ *         job.run(Paths.get("customers"), Paths.get("customers_obfuscated"), ForkJoinPool.commonPool());
+ *
+ *         The checkpoint is saved after every chunk of records written and replaced atomically, two jobs must not
+ *         share the same checkpoint file or the same output directory at the same time.
+ */
+
+public final class PJObfuscateIncrementalJob
+{
+    public static final int SIZE_AND_TIME = 0;
+    public static final int CONTENT_HASH = 1;
+
+    private static final String FINGERPRINT = "fingerprint";
+    private static final String FILE_PREFIX = "file.";
+    private static final String SIZE = ".size";
+    private static final String TIME = ".time";
+    private static final String HASH = ".hash";
+    private static final String INPUT_OFFSET = ".inputOffset";
+    private static final String OUTPUT_OFFSET = ".outputOffset";
+    private static final String RECORD_COUNT = ".recordCount";
+    private static final String COMPLETE = ".complete";
+    private static final int HASH_BUFFER_SIZE = 1 << 20;
+
+    private final PJObfuscateFileProcessor processor;
+    private final Path checkpointFile;
+    private final int changeDetection;
+    private int processedFileCount = 0;
+    private int resumedFileCount = 0;
+    private int skippedFileCount = 0;
+
+    public PJObfuscateIncrementalJob(PJObfuscateFileProcessor processor, Path checkpointFile, int changeDetection)
+    {
+        if (processor == null || checkpointFile == null)
+            throw new IllegalArgumentException("PJObfuscateFileProcessor and checkpoint file are mandatory");
+        if (changeDetection != SIZE_AND_TIME && changeDetection != CONTENT_HASH)
+            throw new IllegalArgumentException("Illegal changeDetection: " + changeDetection);
+        this.processor = processor;
+        this.checkpointFile = checkpointFile;
+        this.changeDetection = changeDetection;
+    }
+
+    /**
+     * Brings the output directory up to date with the input directory, returns the number of records written by
+     * this run, the records of the files that were skipped and of the resumed part of the interrupted files are not
+     * counted. The columns of the processor must not be changed while it runs.
+     */
+    public synchronized long run(Path inputDirectory, Path outputDirectory, ForkJoinPool pool) throws IOException
+    {
+        this.processedFileCount = 0;
+        this.resumedFileCount = 0;
+        this.skippedFileCount = 0;
+        Files.createDirectories(outputDirectory);
+        String fingerprint = toHex(this.processor.getFingerprint());
+        Properties checkpoint = new Properties();
+        if (Files.exists(this.checkpointFile))
+            try (InputStream input = Files.newInputStream(this.checkpointFile))
+            {
+                checkpoint.load(input);
+            }
+        if (!fingerprint.equals(checkpoint.getProperty(FINGERPRINT)))
+        {
+            checkpoint.clear();
+            checkpoint.setProperty(FINGERPRINT, fingerprint);
+            save(checkpoint);
+        }
+        List<Path> inputList = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(inputDirectory))
+        {
+            for (Path input : stream)
+                if (Files.isRegularFile(input))
+                    inputList.add(input);
+        }
+        Collections.sort(inputList);
+        removeDeletedFiles(checkpoint, inputList, outputDirectory);
+        long recordCount = 0;
+        for (Path input : inputList)
+            recordCount += run(checkpoint, input, outputDirectory.resolve(input.getFileName().toString()), pool);
+        return recordCount;
+    }
+
+    private long run(Properties checkpoint, Path input, Path output, ForkJoinPool pool) throws IOException
+    {
+        String key = FILE_PREFIX + input.getFileName().toString();
+        long size = Files.size(input);
+        long time = Files.getLastModifiedTime(input).toMillis();
+        boolean isUnchanged = checkpoint.getProperty(key + SIZE) != null && Long.parseLong(checkpoint.getProperty(key + SIZE)) == size
+                && Files.exists(output);
+        String hash = null;
+        if (this.changeDetection == CONTENT_HASH)
+        {
+            // hashing reads the whole file, it is only worth it when the size did not tell
+            hash = isUnchanged ? getContentHash(input) : null;
+            isUnchanged = isUnchanged && hash.equals(checkpoint.getProperty(key + HASH));
+        } else
+            isUnchanged = isUnchanged && String.valueOf(time).equals(checkpoint.getProperty(key + TIME));
+        long inputOffset = 0;
+        long outputOffset = 0;
+        long recordCount = 0;
+        if (isUnchanged)
+        {
+            if (Boolean.parseBoolean(checkpoint.getProperty(key + COMPLETE)))
+            {
+                this.skippedFileCount++;
+                return 0;
+            }
+            inputOffset = Long.parseLong(checkpoint.getProperty(key + INPUT_OFFSET, "0"));
+            outputOffset = Long.parseLong(checkpoint.getProperty(key + OUTPUT_OFFSET, "0"));
+            recordCount = Long.parseLong(checkpoint.getProperty(key + RECORD_COUNT, "0"));
+            if (outputOffset > Files.size(output))
+                inputOffset = outputOffset = recordCount = 0;
+        }
+        if (inputOffset > 0)
+            this.resumedFileCount++;
+        else
+        {
+            this.processedFileCount++;
+            if (this.changeDetection == CONTENT_HASH && hash == null)
+                hash = getContentHash(input);
+            checkpoint.setProperty(key + SIZE, String.valueOf(size));
+            checkpoint.setProperty(key + TIME, String.valueOf(time));
+            if (hash != null)
+                checkpoint.setProperty(key + HASH, hash);
+            else
+                checkpoint.remove(key + HASH);
+            setOffsets(checkpoint, key, 0, 0, 0);
+            checkpoint.setProperty(key + COMPLETE, "false");
+            save(checkpoint);
+        }
+        long resumedRecordCount = recordCount;
+        long fileRecordCount = this.processor.process(input, output, pool, inputOffset, outputOffset, recordCount,
+                (checkpointInputOffset, checkpointOutputOffset, checkpointRecordCount) ->
+                {
+                    setOffsets(checkpoint, key, checkpointInputOffset, checkpointOutputOffset, checkpointRecordCount);
+                    save(checkpoint);
+                });
+        checkpoint.setProperty(key + RECORD_COUNT, String.valueOf(fileRecordCount));
+        checkpoint.setProperty(key + COMPLETE, "true");
+        save(checkpoint);
+        return fileRecordCount - resumedRecordCount;
+    }
+
+    private static void setOffsets(Properties checkpoint, String key, long inputOffset, long outputOffset, long recordCount)
+    {
+        checkpoint.setProperty(key + INPUT_OFFSET, String.valueOf(inputOffset));
+        checkpoint.setProperty(key + OUTPUT_OFFSET, String.valueOf(outputOffset));
+        checkpoint.setProperty(key + RECORD_COUNT, String.valueOf(recordCount));
+    }
+
+    private void removeDeletedFiles(Properties checkpoint, List<Path> inputList, Path outputDirectory) throws IOException
+    {
+        List<String> nameList = new ArrayList<>();
+        for (Path input : inputList)
+            nameList.add(input.getFileName().toString());
+        boolean isRemoved = false;
+        for (String property : checkpoint.stringPropertyNames())
+            if (property.startsWith(FILE_PREFIX) && property.endsWith(SIZE))
+            {
+                String name = property.substring(FILE_PREFIX.length(), property.length() - SIZE.length());
+                if (nameList.contains(name) || !isOutputFile(outputDirectory, name))
+                    continue;
+                Files.deleteIfExists(outputDirectory.resolve(name));
+                for (String suffix : new String[] { SIZE, TIME, HASH, INPUT_OFFSET, OUTPUT_OFFSET, RECORD_COUNT, COMPLETE })
+                    checkpoint.remove(FILE_PREFIX + name + suffix);
+                isRemoved = true;
+            }
+        if (isRemoved)
+            save(checkpoint);
+    }
+
+    /**
+     * Whether name is a plain file name that resolves to a file inside outputDirectory, a checkpoint edited by hand or
+     * written for another directory must not delete anything else.
+     */
+    private static boolean isOutputFile(Path outputDirectory, String name)
+    {
+        try
+        {
+            Path fileName = Paths.get(name).getFileName();
+            Path directory = outputDirectory.normalize();
+            Path output = outputDirectory.resolve(name).normalize();
+            return fileName != null && fileName.toString().equals(name) && output.startsWith(directory) && !output.equals(directory);
+        } catch (InvalidPathException e)
+        {
+            return false;
+        }
+    }
+
+    /**
+     * Writes the checkpoint into a temporary file next to it and moves it over the previous one, a crash leaves
+     * either the previous checkpoint or the new one.
+     */
+    private void save(Properties checkpoint) throws IOException
+    {
+        Path directory = this.checkpointFile.toAbsolutePath().getParent();
+        Files.createDirectories(directory);
+        Path temporaryFile = Files.createTempFile(directory, this.checkpointFile.getFileName().toString(), ".tmp");
+        try
+        {
+            try (FileChannel channel = FileChannel.open(temporaryFile, StandardOpenOption.WRITE);
+                    OutputStream output = Channels.newOutputStream(channel))
+            {
+                checkpoint.store(output, "PJObfuscateIncrementalJob checkpoint, do not edit");
+                channel.force(true);
+            }
+            Files.move(temporaryFile, this.checkpointFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally
+        {
+            Files.deleteIfExists(temporaryFile);
+        }
+    }
+
+    private static String getContentHash(Path input) throws IOException
+    {
+        try (FileChannel channel = FileChannel.open(input, StandardOpenOption.READ))
+        {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            ByteBuffer buffer = ByteBuffer.allocate(HASH_BUFFER_SIZE);
+            while (channel.read(buffer) != -1)
+            {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+            return toHex(digest.digest());
+        } catch (NoSuchAlgorithmException e)
+        {
+            // every JVM provides SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toHex(byte[] array)
+    {
+        StringBuilder hex = new StringBuilder(array.length * 2);
+        for (byte b : array)
+            hex.append(Character.forDigit((b >>> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        return hex.toString();
+    }
+
+    /**
+     * Returns the number of files the last run processed from the start.
+     */
+    public int getProcessedFileCount()
+    {
+        return this.processedFileCount;
+    }
+
+    /**
+     * Returns the number of files the last run resumed from a checkpoint.
+     */
+    public int getResumedFileCount()
+    {
+        return this.resumedFileCount;
+    }
+
+    /**
+     * Returns the number of files the last run skipped because they had not changed.
+     */
+    public int getSkippedFileCount()
+    {
+        return this.skippedFileCount;
+    }
+}
@@ -0,0 +1,614 @@
+package pj.util;
+
+import java.io.PrintWriter;
+import java.math.BigInteger;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import javax.sql.DataSource;
+
+/**
+ *
+ *         Copies a table from one database into another through JDBC, obfuscating some of its columns on the way,
+ *         typically to fill a lower environment with production data. Every column of the source table is copied
+ *         into the column with the same name of the target table, which must already exist.
+ *
+ *         Rows are streamed, the source is read with a forward only, read only ResultSet of fetchSize rows at a
+ *         time, and the target is written with PreparedStatement batches of batchSize rows, each batch is
+ *         committed. The memory used only depends on fetchSize and batchSize, whatever the size of the table. A run
+ *         that fails leaves the batches it already committed in the target table, the target table must be emptied
+ *         before the job is run again or the rows copied twice violate its primary key.
+ *
+ *         The table can be split into partitions by ranges of an integer primary key, each partition is read and
+ *         written by a thread of its own on its own connections. Tables whose primary key is not an integer are
+ *         copied in a single partition.
+ *
+ *         Each column can have its own rule, which is its own PJObfuscateUtil instance along with one of the
+ *         following modes: -
+ *              PASS_THROUGH : the column is copied as it is, it is also the mode of the columns without rule
+ *              WHOLE_VALUE : the column value is obfuscated with getObfuscated(String)
+ *              BY_SPACE : the column value is obfuscated with getObfuscatedBySpace(String)
+ *         The obfuscated columns are read and written as strings, NULL stays NULL.
+ *
+ *         Here is an example: -
+ *         PJObfuscateJdbcJob job = new PJObfuscateJdbcJob(productionDataSource, testDataSource, "customers", "customers", "id", 1000, 1000);
+ *         job.addColumn("email", new PJObfuscateUtil(1934233), PJObfuscateJdbcJob.WHOLE_VALUE);
+ *         job.addColumn("full_name", new PJObfuscateUtil(1934233), PJObfuscateJdbcJob.BY_SPACE);
+ *         long rowCount = job.run(4);
+ *
+ *         Table and column names are written into the SQL as they are given, quote them if the database needs it.
+ *         Some drivers only stream with a specific fetchSize, MySQL for instance needs Integer.MIN_VALUE. To check
+ *         the job against an embedded database, run main with its JDBC URL and its driver on the class path.
+ */
+
+public final class PJObfuscateJdbcJob
+{
+    public static final int PASS_THROUGH = 0;
+    public static final int WHOLE_VALUE = 1;
+    public static final int BY_SPACE = 2;
+
+    private static final int DEFAULT_FETCH_SIZE = 1000;
+    private static final int DEFAULT_BATCH_SIZE = 1000;
+
+    private final DataSource sourceDataSource;
+    private final DataSource targetDataSource;
+    private final String sourceTable;
+    private final String targetTable;
+    private final String primaryKey;
+    private final int fetchSize;
+    private final int batchSize;
+    // databases fold the case of the column names differently
+    private final Map<String, ColumnRule> columnMap = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+
+    public PJObfuscateJdbcJob(DataSource sourceDataSource, DataSource targetDataSource, String table, String primaryKey)
+    {
+        this(sourceDataSource, targetDataSource, table, table, primaryKey, DEFAULT_FETCH_SIZE, DEFAULT_BATCH_SIZE);
+    }
+
+    public PJObfuscateJdbcJob(DataSource sourceDataSource, DataSource targetDataSource, String sourceTable, String targetTable,
+            String primaryKey, int fetchSize, int batchSize)
+    {
+        if (sourceDataSource == null || targetDataSource == null || sourceTable == null || targetTable == null || primaryKey == null)
+            throw new IllegalArgumentException("DataSources, tables and primary key are mandatory");
+        if (batchSize < 1)
+            throw new IllegalArgumentException("Illegal batchSize: " + batchSize);
+        this.sourceDataSource = sourceDataSource;
+        this.targetDataSource = targetDataSource;
+        this.sourceTable = sourceTable;
+        this.targetTable = targetTable;
+        this.primaryKey = primaryKey;
+        this.fetchSize = fetchSize;
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Sets the rule of the column with the given name, the name is not case sensitive.
+     */
+    public PJObfuscateJdbcJob addColumn(String column, PJObfuscateUtil obfuscateUtil, int mode)
+    {
+        if (mode != PASS_THROUGH && mode != WHOLE_VALUE && mode != BY_SPACE)
+            throw new IllegalArgumentException("Illegal mode: " + mode);
+        if (obfuscateUtil == null && mode != PASS_THROUGH)
+            throw new IllegalArgumentException("PJObfuscateUtil is mandatory to obfuscate column " + column);
+        this.columnMap.put(column, new ColumnRule(obfuscateUtil, mode));
+        return this;
+    }
+
+    /**
+     * Copies the whole table in a single partition, returns the number of rows written. When it fails the batches
+     * already committed stay in the target table.
+     */
+    public long run() throws SQLException
+    {
+        return new Partition(null, null, false, new Cancellation()).call();
+    }
+
+    /**
+     * Copies the table in at most partitionCount partitions running at the same time, each one a range of the
+     * primary key, and returns the number of rows written. As soon as a partition fails the other ones are
+     * cancelled, their running statements are cancelled and they stop before their next batch or commit. The
+     * failure is thrown once they have all stopped, nothing is written into the target table after this method
+     * returns, but the batches already committed stay in it.
+     */
+    public long run(int partitionCount) throws SQLException
+    {
+        if (partitionCount < 1)
+            throw new IllegalArgumentException("Illegal partitionCount: " + partitionCount);
+        Cancellation cancellation = new Cancellation();
+        List<Partition> partitionList = partitionCount == 1 ? null : getPartitionList(partitionCount, cancellation);
+        if (partitionList == null)
+            return run();
+        ExecutorService executor = Executors.newFixedThreadPool(partitionList.size());
+        try
+        {
+            // the partitions are joined as they complete, the first failure is seen whichever partition it is
+            CompletionService<Long> completionService = new ExecutorCompletionService<>(executor);
+            for (Partition partition : partitionList)
+                completionService.submit(partition);
+            long rowCount = 0;
+            for (int i = 0; i < partitionList.size(); i++)
+                rowCount += completionService.take().get();
+            return rowCount;
+        } catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while copying " + this.sourceTable, e);
+        } catch (ExecutionException e)
+        {
+            // the partitions cancelled because of the failure may complete before the one that failed
+            Throwable cause = cancellation.getFailure() != null ? cancellation.getFailure() : e.getCause();
+            if (cause instanceof SQLException)
+                throw (SQLException) cause;
+            throw new SQLException("Failed to copy " + this.sourceTable, cause);
+        } finally
+        {
+            cancellation.cancel(null);
+            executor.shutdown();
+            awaitTermination(executor);
+        }
+    }
+
+    /**
+     * Waits for the partitions to stop even when the thread is interrupted, the interrupt is kept for the caller.
+     */
+    private static void awaitTermination(ExecutorService executor)
+    {
+        boolean isInterrupted = false;
+        boolean isTerminated = false;
+        while (!isTerminated)
+            try
+            {
+                isTerminated = executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e)
+            {
+                isInterrupted = true;
+            }
+        if (isInterrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    /**
+     * Splits [MIN(primaryKey), MAX(primaryKey)] into ranges of the same width. Returns null when the primary key is
+     * not an integer or the table is empty, the table is then copied in a single partition.
+     */
+    private List<Partition> getPartitionList(int partitionCount, Cancellation cancellation) throws SQLException
+    {
+        BigInteger min = null;
+        BigInteger max = null;
+        try (Connection connection = this.sourceDataSource.getConnection();
+                PreparedStatement statement = connection.prepareStatement(
+                        "SELECT MIN(" + this.primaryKey + "), MAX(" + this.primaryKey + ") FROM " + this.sourceTable);
+                ResultSet resultSet = statement.executeQuery())
+        {
+            if (!resultSet.next() || !isInteger(resultSet.getMetaData(), 1))
+                return null;
+            long minValue = resultSet.getLong(1);
+            if (resultSet.wasNull())
+                return null;
+            long maxValue = resultSet.getLong(2);
+            if (resultSet.wasNull())
+                return null;
+            min = BigInteger.valueOf(minValue);
+            max = BigInteger.valueOf(maxValue);
+        }
+        BigInteger width = max.subtract(min).add(BigInteger.ONE);
+        int count = (int) Math.min(partitionCount, width.min(BigInteger.valueOf(Integer.MAX_VALUE)).longValue());
+        List<Partition> partitionList = new ArrayList<>(count);
+        for (int i = 0; i < count; i++)
+        {
+            long from = min.add(width.multiply(BigInteger.valueOf(i)).divide(BigInteger.valueOf(count))).longValue();
+            if (i == count - 1)
+                partitionList.add(new Partition(from, max.longValue(), true, cancellation));
+            else
+                partitionList.add(new Partition(from, min.add(width.multiply(BigInteger.valueOf(i + 1)).divide(BigInteger.valueOf(count))).longValue(), false,
+                        cancellation));
+        }
+        return partitionList;
+    }
+
+    private static boolean isInteger(ResultSetMetaData metaData, int column) throws SQLException
+    {
+        switch (metaData.getColumnType(column))
+        {
+            case Types.TINYINT:
+            case Types.SMALLINT:
+            case Types.INTEGER:
+            case Types.BIGINT:
+                return true;
+            case Types.NUMERIC:
+            case Types.DECIMAL:
+                return metaData.getScale(column) == 0 && metaData.getPrecision(column) <= 18;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * The rows of one range of the primary key, [from, to) or [from, to] for the last one, or of the whole table
+     * when from is null.
+     */
+    private final class Partition implements Callable<Long>
+    {
+        private final Long from;
+        private final Long to;
+        private final boolean isLast;
+        private final Cancellation cancellation;
+
+        private Partition(Long from, Long to, boolean isLast, Cancellation cancellation)
+        {
+            this.from = from;
+            this.to = to;
+            this.isLast = isLast;
+            this.cancellation = cancellation;
+        }
+
+        @Override
+        public Long call() throws SQLException
+        {
+            String selectSql = "SELECT * FROM " + sourceTable;
+            if (this.from != null)
+                selectSql += " WHERE " + primaryKey + " >= ? AND " + primaryKey + (this.isLast ? " <= ?" : " < ?");
+            try (Connection sourceConnection = sourceDataSource.getConnection();
+                    Connection targetConnection = targetDataSource.getConnection())
+            {
+                Exception failure = null;
+                // some drivers, PostgreSQL for instance, only honour the fetch size inside a transaction
+                sourceConnection.setAutoCommit(false);
+                sourceConnection.setReadOnly(true);
+                targetConnection.setAutoCommit(false);
+                try (PreparedStatement select = sourceConnection.prepareStatement(selectSql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY))
+                {
+                    this.cancellation.add(select);
+                    select.setFetchSize(fetchSize);
+                    if (this.from != null)
+                    {
+                        select.setLong(1, this.from);
+                        select.setLong(2, this.to);
+                    }
+                    try (ResultSet resultSet = select.executeQuery())
+                    {
+                        return copy(resultSet, targetConnection);
+                    }
+                } catch (SQLException | RuntimeException e)
+                {
+                    this.cancellation.cancel(e);
+                    failure = e;
+                    rollback(targetConnection, e);
+                    throw e;
+                } finally
+                {
+                    rollback(sourceConnection, failure);
+                }
+            }
+        }
+
+        /**
+         * Rolls back the connection, a failure of the rollback is added to the failure that caused it instead of
+         * replacing it, the connection may well be broken already.
+         */
+        private void rollback(Connection connection, Exception failure) throws SQLException
+        {
+            try
+            {
+                connection.rollback();
+            } catch (SQLException e)
+            {
+                if (failure == null)
+                    throw e;
+                failure.addSuppressed(e);
+            }
+        }
+
+        private long copy(ResultSet resultSet, Connection targetConnection) throws SQLException
+        {
+            ResultSetMetaData metaData = resultSet.getMetaData();
+            int columnCount = metaData.getColumnCount();
+            ColumnRule[] columnRules = new ColumnRule[columnCount + 1];
+            int[] columnTypes = new int[columnCount + 1];
+            StringBuilder insertSql = new StringBuilder("INSERT INTO ").append(targetTable).append(" (");
+            for (int i = 1; i <= columnCount; i++)
+            {
+                String column = metaData.getColumnLabel(i);
+                ColumnRule rule = columnMap.get(column);
+                if (rule != null && rule.mode != PASS_THROUGH)
+                    columnRules[i] = rule;
+                columnTypes[i] = metaData.getColumnType(i);
+                insertSql.append(i > 1 ? ", " : "").append(column);
+            }
+            insertSql.append(") VALUES (");
+            for (int i = 1; i <= columnCount; i++)
+                insertSql.append(i > 1 ? ", ?" : "?");
+            insertSql.append(')');
+            long rowCount = 0;
+            int pendingCount = 0;
+            try (PreparedStatement insert = targetConnection.prepareStatement(insertSql.toString()))
+            {
+                this.cancellation.add(insert);
+                while (resultSet.next())
+                {
+                    for (int i = 1; i <= columnCount; i++)
+                    {
+                        Object value = columnRules[i] != null ? resultSet.getString(i) : resultSet.getObject(i);
+                        if (value == null)
+                            insert.setNull(i, columnTypes[i]);
+                        else if (columnRules[i] != null)
+                            insert.setString(i, columnRules[i].getObfuscated((String) value));
+                        else
+                            insert.setObject(i, value);
+                    }
+                    insert.addBatch();
+                    rowCount++;
+                    if (++pendingCount == batchSize)
+                    {
+                        this.cancellation.check();
+                        insert.executeBatch();
+                        this.cancellation.check();
+                        targetConnection.commit();
+                        pendingCount = 0;
+                    }
+                }
+                this.cancellation.check();
+                if (pendingCount > 0)
+                    insert.executeBatch();
+                this.cancellation.check();
+                targetConnection.commit();
+            }
+            return rowCount;
+        }
+    }
+
+    /**
+     * Checks the job against an embedded database given by its JDBC URL, jdbc:h2:mem:check;DB_CLOSE_DELAY=-1 or
+     * jdbc:derby:memory:check;create=true for instance, with its driver on the class path. A table with NULLs is
+     * copied in a single partition and in four, and each row of the copy is compared with the source. Then a
+     * partition is made to fail and no row must be written once run returns.
+     */
+    public static void main(String[] args) throws SQLException, InterruptedException
+    {
+        if (args.length != 1)
+        {
+            System.out.println("Usage: java -cp <classes>:<driver jar> pj.util.PJObfuscateJdbcJob <JDBC URL of an empty embedded database>");
+            return;
+        }
+        DataSource dataSource = new DriverManagerDataSource(args[0]);
+        int rowCount = 10000;
+        try (Connection connection = dataSource.getConnection(); Statement statement = connection.createStatement())
+        {
+            statement.execute("CREATE TABLE pj_customers (id INTEGER PRIMARY KEY, email VARCHAR(100), full_name VARCHAR(100), city VARCHAR(100))");
+            statement.execute("CREATE TABLE pj_customers_copy (id INTEGER PRIMARY KEY, email VARCHAR(100), full_name VARCHAR(100), city VARCHAR(100))");
+            try (PreparedStatement insert = connection.prepareStatement("INSERT INTO pj_customers VALUES (?, ?, ?, ?)"))
+            {
+                for (int i = 0; i < rowCount; i++)
+                {
+                    insert.setInt(1, i * 3);
+                    insert.setString(2, i % 10 == 0 ? null : "pankaj.johar" + i + "@gmail.com");
+                    insert.setString(3, i % 7 == 0 ? null : "Pankaj Sharma " + i);
+                    insert.setString(4, i % 5 == 0 ? null : "Austin " + i);
+                    insert.addBatch();
+                }
+                insert.executeBatch();
+            }
+        }
+        PJObfuscateUtil obfuscateUtil = new PJObfuscateUtil(1934233);
+        PJObfuscateJdbcJob job = new PJObfuscateJdbcJob(dataSource, dataSource, "pj_customers", "pj_customers_copy", "id", 500, 300);
+        job.addColumn("email", obfuscateUtil, WHOLE_VALUE);
+        job.addColumn("full_name", obfuscateUtil, BY_SPACE);
+
+        System.out.println("Single partition - " + job.run() + " rows, copy is right - " + isCopied(dataSource, obfuscateUtil, rowCount));
+        execute(dataSource, "DELETE FROM pj_customers_copy");
+        System.out.println("Four partitions - " + job.run(4) + " rows, copy is right - " + isCopied(dataSource, obfuscateUtil, rowCount));
+
+        // the first partition fails on its first batch, the other ones are cancelled
+        execute(dataSource, "DELETE FROM pj_customers_copy");
+        execute(dataSource, "INSERT INTO pj_customers_copy (id) VALUES (0)");
+        try
+        {
+            job.run(4);
+            System.out.println("A partition that fails did not fail the run");
+        } catch (SQLException e)
+        {
+            System.out.println("A partition that fails fails the run - " + e.getMessage());
+        }
+        execute(dataSource, "DELETE FROM pj_customers_copy");
+        Thread.sleep(500);
+        System.out.println("No row written after the run failed - " + (count(dataSource) == 0));
+    }
+
+    private static void execute(DataSource dataSource, String sql) throws SQLException
+    {
+        try (Connection connection = dataSource.getConnection(); Statement statement = connection.createStatement())
+        {
+            statement.execute(sql);
+        }
+    }
+
+    private static long count(DataSource dataSource) throws SQLException
+    {
+        try (Connection connection = dataSource.getConnection();
+                Statement statement = connection.createStatement();
+                ResultSet resultSet = statement.executeQuery("SELECT COUNT(*) FROM pj_customers_copy"))
+        {
+            resultSet.next();
+            return resultSet.getLong(1);
+        }
+    }
+
+    private static boolean isCopied(DataSource dataSource, PJObfuscateUtil obfuscateUtil, int rowCount) throws SQLException
+    {
+        try (Connection connection = dataSource.getConnection();
+                Statement statement = connection.createStatement();
+                ResultSet resultSet = statement.executeQuery("SELECT s.email, s.full_name, s.city, c.email, c.full_name, c.city"
+                        + " FROM pj_customers s JOIN pj_customers_copy c ON s.id = c.id"))
+        {
+            int count = 0;
+            while (resultSet.next())
+            {
+                String email = resultSet.getString(1);
+                String fullName = resultSet.getString(2);
+                if (!Objects.equals(email == null ? null : obfuscateUtil.getObfuscated(email), resultSet.getString(4))
+                        || !Objects.equals(fullName == null ? null : obfuscateUtil.getObfuscatedBySpace(fullName), resultSet.getString(5))
+                        || !Objects.equals(resultSet.getString(3), resultSet.getString(6)))
+                    return false;
+                count++;
+            }
+            return count == rowCount;
+        }
+    }
+
+    /**
+     * Shared by the partitions of a run, once cancelled their statements are cancelled and check() fails, so that a
+     * partition stops before its next batch or commit.
+     */
+    private static final class Cancellation
+    {
+        private final List<Statement> statementList = new ArrayList<>();
+        private boolean isCancelled = false;
+        private Exception failure = null;
+
+        private synchronized void add(Statement statement) throws SQLException
+        {
+            check();
+            this.statementList.add(statement);
+        }
+
+        private synchronized void check() throws SQLException
+        {
+            if (this.isCancelled)
+                throw new SQLException("Cancelled, another partition failed");
+        }
+
+        /**
+         * failure is the one that made the run fail, null when the run is over.
+         */
+        private void cancel(Exception failure)
+        {
+            List<Statement> statementList;
+            synchronized (this)
+            {
+                if (this.isCancelled)
+                    return;
+                this.isCancelled = true;
+                this.failure = failure;
+                statementList = new ArrayList<>(this.statementList);
+            }
+            for (Statement statement : statementList)
+                try
+                {
+                    statement.cancel();
+                } catch (SQLException e)
+                {
+                    // closed already or not supported by the driver, the partition still stops at its next check
+                }
+        }
+
+        private synchronized Exception getFailure()
+        {
+            return this.failure;
+        }
+    }
+
+    /**
+     * The connections of DriverManager for a JDBC URL, for main.
+     */
+    private static final class DriverManagerDataSource implements DataSource
+    {
+        private final String url;
+
+        private DriverManagerDataSource(String url)
+        {
+            this.url = url;
+        }
+
+        @Override
+        public Connection getConnection() throws SQLException
+        {
+            return DriverManager.getConnection(this.url);
+        }
+
+        @Override
+        public Connection getConnection(String user, String password) throws SQLException
+        {
+            return DriverManager.getConnection(this.url, user, password);
+        }
+
+        @Override
+        public PrintWriter getLogWriter()
+        {
+            return DriverManager.getLogWriter();
+        }
+
+        @Override
+        public void setLogWriter(PrintWriter logWriter)
+        {
+            DriverManager.setLogWriter(logWriter);
+        }
+
+        @Override
+        public int getLoginTimeout()
+        {
+            return DriverManager.getLoginTimeout();
+        }
+
+        @Override
+        public void setLoginTimeout(int seconds)
+        {
+            DriverManager.setLoginTimeout(seconds);
+        }
+
+        @Override
+        public Logger getParentLogger()
+        {
+            return Logger.getLogger("pj.util");
+        }
+
+        @Override
+        public <T> T unwrap(Class<T> type) throws SQLException
+        {
+            if (!type.isInstance(this))
+                throw new SQLException("Not a wrapper of " + type.getName());
+            return type.cast(this);
+        }
+
+        @Override
+        public boolean isWrapperFor(Class<?> type)
+        {
+            return type.isInstance(this);
+        }
+    }
+
+    private static final class ColumnRule
+    {
+        private final PJObfuscateUtil obfuscateUtil;
+        private final int mode;
+
+        private ColumnRule(PJObfuscateUtil obfuscateUtil, int mode)
+        {
+            this.obfuscateUtil = obfuscateUtil;
+            this.mode = mode;
+        }
+
+        private String getObfuscated(String value)
+        {
+            return this.mode == BY_SPACE ? this.obfuscateUtil.getObfuscatedBySpace(value) : this.obfuscateUtil.getObfuscated(value);
+        }
+    }
+}
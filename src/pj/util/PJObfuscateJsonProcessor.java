@@ -0,0 +1,652 @@
+package pj.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ *
+ *         Streams JSON documents in UTF-8 through PJObfuscateUtil, a single document or any number of documents one
+ *         after the other such as NDJSON. The document is never parsed into a tree, it is read token by token and
+ *         every byte is copied as it is except the string and number values found at the configured paths. The
+ *         memory used is constant whatever the size of the document, it only depends on the deepest nesting and on
+ *         the longest masked value.
+ *
+ *         A path is the names of the fields from the top of the document separated by dots, arrays are transparent so
+ *         "users.email" matches the email field of each object of the users array, and so do "users[*].email" and
+ *         "$.users.email". A name can be replaced with a wildcard: -
+ *              * : any single field name
+ *              ** : any number of field names, including none, "**.email" matches every email field of the document
+ *         Field names are compared with the bytes of the document as they are, without resolving escapes. When
+ *         several paths match a value the first one added wins. Each path has its own rule, which is its own
+ *         PJObfuscateUtil instance along with one of the following modes: -
+ *              WHOLE_VALUE : the value is obfuscated with getObfuscated(String)
+ *              BY_SPACE : the value is obfuscated with getObfuscatedBySpace(String)
+ *
+ *         A masked string is exactly getObfuscated of its unescaped value, written back with the escapes JSON
+ *         requires. A masked number is getObfuscated of its text, when the result is not a valid JSON number anymore,
+ *         a leading zero for instance, it is written as a string.
+ *
+ *         Here is an example: -
+ *         PJObfuscateJsonProcessor processor = new PJObfuscateJsonProcessor();
+ *         processor.addPath("user.email", new PJObfuscateUtil(1934233), PJObfuscateJsonProcessor.WHOLE_VALUE);
+ *         processor.addPath("**.full_name", new PJObfuscateUtil(1934233), PJObfuscateJsonProcessor.BY_SPACE);
+ *         processor.process(Paths.get("events.ndjson"), Paths.get("events_obfuscated.ndjson"));
+ *
+ *         Paths must be added before processing. The processor keeps no state between two documents, so the same
+ *         instance can process several files at the same time from different threads. Input that is not valid JSON
+ *         is copied as it is as far as possible.
+ */
+
+public final class PJObfuscateJsonProcessor
+{
+    public static final int WHOLE_VALUE = 1;
+    public static final int BY_SPACE = 2;
+
+    private static final int BUFFER_SIZE = 1 << 20;
+    private static final byte QUOTE = '"';
+    private static final byte BACKSLASH = '\\';
+
+    private static final int VALUE = 0;
+    private static final int STRING = 1;
+    private static final int STRING_ESCAPE = 2;
+    private static final int NUMBER = 3;
+    private static final int LITERAL = 4;
+
+    private static final int COPIED = 0;
+    private static final int NAME = 1;
+    private static final int MASKED = 2;
+
+    private final List<PathRule> pathList = new ArrayList<>();
+
+    public PJObfuscateJsonProcessor addPath(String path, PJObfuscateUtil obfuscateUtil, int mode)
+    {
+        this.pathList.add(new PathRule(path, obfuscateUtil, mode));
+        return this;
+    }
+
+    /**
+     * Obfuscates the input file into the output file, returns the number of top level values, the number of lines
+     * of an NDJSON file.
+     */
+    public long process(Path input, Path output) throws IOException
+    {
+        try (FileChannel inputChannel = FileChannel.open(input, StandardOpenOption.READ);
+                FileChannel outputChannel = FileChannel.open(output, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                        StandardOpenOption.TRUNCATE_EXISTING))
+        {
+            return process(inputChannel, outputChannel);
+        }
+    }
+
+    /**
+     * Obfuscates everything read from the input channel into the output channel, returns the number of top level
+     * values. Channels are not closed.
+     */
+    public long process(ReadableByteChannel input, WritableByteChannel output) throws IOException
+    {
+        JsonParser parser = new JsonParser(output);
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        while (input.read(buffer) != -1)
+        {
+            buffer.flip();
+            parser.parse(buffer.array(), buffer.position(), buffer.limit());
+            buffer.clear();
+        }
+        return parser.finish();
+    }
+
+    private static final class PathRule
+    {
+        private static final byte[] ANY_NAME = { '*' };
+        private static final byte[] ANY_PATH = { '*', '*' };
+        private final byte[][] segments;
+        private final PJObfuscateUtil obfuscateUtil;
+        private final int mode;
+
+        private PathRule(String path, PJObfuscateUtil obfuscateUtil, int mode)
+        {
+            if (mode != WHOLE_VALUE && mode != BY_SPACE)
+                throw new IllegalArgumentException("Unknown mode: " + mode);
+            if (obfuscateUtil == null || path == null)
+                throw new IllegalArgumentException("Path and PJObfuscateUtil are mandatory");
+            List<byte[]> segmentList = new ArrayList<>();
+            for (String segment : path.replace("[*]", "").replace("[]", "").split("\\."))
+                if (segment.length() > 0 && !segment.equals("$"))
+                    segmentList.add(segment.equals("**") ? ANY_PATH : segment.equals("*") ? ANY_NAME : segment.getBytes(StandardCharsets.UTF_8));
+            if (segmentList.isEmpty())
+                throw new IllegalArgumentException("Illegal path: " + path);
+            this.segments = segmentList.toArray(new byte[segmentList.size()][]);
+            this.obfuscateUtil = obfuscateUtil;
+            this.mode = mode;
+        }
+
+        private boolean isMatch(byte[][] names, int[] nameLengths, int depth)
+        {
+            return isMatch(0, names, nameLengths, 0, depth);
+        }
+
+        private boolean isMatch(int segment, byte[][] names, int[] nameLengths, int name, int depth)
+        {
+            for (; segment < this.segments.length; segment++, name++)
+            {
+                if (this.segments[segment] == ANY_PATH)
+                {
+                    for (int i = name; i <= depth; i++)
+                        if (isMatch(segment + 1, names, nameLengths, i, depth))
+                            return true;
+                    return false;
+                }
+                if (name == depth)
+                    return false;
+                if (this.segments[segment] != ANY_NAME && !isEqual(this.segments[segment], names[name], nameLengths[name]))
+                    return false;
+            }
+            return name == depth;
+        }
+
+        private static boolean isEqual(byte[] segment, byte[] name, int nameLength)
+        {
+            if (segment.length != nameLength)
+                return false;
+            for (int i = 0; i < nameLength; i++)
+                if (segment[i] != name[i])
+                    return false;
+            return true;
+        }
+    }
+
+    /**
+     * Holds everything needed to parse one document, the state is kept between two buffers so a token may span any
+     * number of buffers.
+     */
+    private final class JsonParser
+    {
+        private final WritableByteChannel channel;
+        private final ByteBuffer outputBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+        // '{' or '[' for each level, the field names are only kept for the objects
+        private byte[] containers = new byte[16];
+        private int depth = 0;
+        private byte[][] names = new byte[16][];
+        private int[] nameLengths = new int[16];
+        private int nameDepth = 0;
+        // whether the next string of the object is a field name
+        private boolean isName = false;
+        private int state = VALUE;
+        private int stringKind = COPIED;
+        private PathRule rule = null;
+        private byte[] fieldArray = new byte[256];
+        private int fieldLength = 0;
+        private boolean hasEscape = false;
+        private byte[] obfuscatedArray = new byte[768];
+        private char[] charArray = new char[256];
+        private long valueCount = 0;
+
+        private JsonParser(WritableByteChannel channel)
+        {
+            this.channel = channel;
+        }
+
+        private void parse(byte[] input, int from, int to) throws IOException
+        {
+            int i = from;
+            while (i < to)
+            {
+                byte b = input[i];
+                switch (this.state)
+                {
+                case STRING:
+                {
+                    int end = i;
+                    while (end < to && input[end] != QUOTE && input[end] != BACKSLASH)
+                        end++;
+                    appendString(input, i, end);
+                    if (end == to)
+                        return;
+                    if (input[end] == BACKSLASH)
+                    {
+                        appendString(input, end, end + 1);
+                        this.hasEscape = true;
+                        this.state = STRING_ESCAPE;
+                    } else
+                        endString();
+                    i = end + 1;
+                    break;
+                }
+                case STRING_ESCAPE:
+                    appendString(input, i, i + 1);
+                    this.state = STRING;
+                    i++;
+                    break;
+                case NUMBER:
+                    if ((b >= '0' && b <= '9') || b == '-' || b == '+' || b == '.' || b == 'e' || b == 'E')
+                    {
+                        if (this.rule == null)
+                            write(b);
+                        else
+                            appendField(input, i, i + 1);
+                        i++;
+                    } else
+                    {
+                        // the byte after the number is parsed again as the start of a token
+                        writeNumber();
+                        this.state = VALUE;
+                    }
+                    break;
+                case LITERAL:
+                    if (b >= 'a' && b <= 'z')
+                    {
+                        write(b);
+                        i++;
+                    } else
+                        this.state = VALUE;
+                    break;
+                default:
+                    parseToken(b);
+                    i++;
+                    break;
+                }
+            }
+        }
+
+        private void parseToken(byte b) throws IOException
+        {
+            if (b == QUOTE)
+            {
+                write(b);
+                this.fieldLength = 0;
+                this.hasEscape = false;
+                if (this.isName && this.depth > 0 && this.containers[this.depth - 1] == '{')
+                {
+                    this.stringKind = NAME;
+                    this.nameLengths[this.nameDepth - 1] = 0;
+                } else
+                {
+                    this.rule = getPathRule();
+                    this.stringKind = this.rule == null ? COPIED : MASKED;
+                }
+                this.state = STRING;
+                return;
+            }
+            if ((b >= '0' && b <= '9') || b == '-')
+            {
+                this.rule = getPathRule();
+                this.fieldLength = 0;
+                if (this.rule == null)
+                    write(b);
+                else
+                    this.fieldArray[this.fieldLength++] = b;
+                this.state = NUMBER;
+                return;
+            }
+            write(b);
+            switch (b)
+            {
+            case '{':
+                push(b);
+                this.isName = true;
+                break;
+            case '[':
+                push(b);
+                this.isName = false;
+                break;
+            case '}':
+            case ']':
+                pop();
+                break;
+            case ',':
+                this.isName = this.depth > 0 && this.containers[this.depth - 1] == '{';
+                break;
+            case ':':
+                this.isName = false;
+                break;
+            default:
+                if (b >= 'a' && b <= 'z')
+                {
+                    if (this.depth == 0)
+                        this.valueCount++;
+                    this.state = LITERAL;
+                }
+                break;
+            }
+        }
+
+        private void push(byte container)
+        {
+            if (this.depth == 0)
+                this.valueCount++;
+            if (this.depth == this.containers.length)
+                this.containers = Arrays.copyOf(this.containers, this.depth * 2);
+            this.containers[this.depth++] = container;
+            if (container == '{')
+            {
+                if (this.nameDepth == this.names.length)
+                {
+                    this.names = Arrays.copyOf(this.names, this.nameDepth * 2);
+                    this.nameLengths = Arrays.copyOf(this.nameLengths, this.nameDepth * 2);
+                }
+                if (this.names[this.nameDepth] == null)
+                    this.names[this.nameDepth] = new byte[32];
+                this.nameLengths[this.nameDepth++] = 0;
+            }
+        }
+
+        private void pop()
+        {
+            if (this.depth == 0)
+                return;
+            if (this.containers[--this.depth] == '{')
+                this.nameDepth--;
+            this.isName = false;
+        }
+
+        /**
+         * Returns the rule of the value that starts, or null when no path matches it.
+         */
+        private PathRule getPathRule()
+        {
+            if (this.depth == 0)
+                this.valueCount++;
+            if (this.nameDepth == 0)
+                return null;
+            for (PathRule pathRule : pathList)
+                if (pathRule.isMatch(this.names, this.nameLengths, this.nameDepth))
+                    return pathRule;
+            return null;
+        }
+
+        private void appendString(byte[] input, int from, int to) throws IOException
+        {
+            if (this.stringKind == MASKED)
+            {
+                appendField(input, from, to);
+                return;
+            }
+            write(input, from, to);
+            if (this.stringKind == NAME)
+            {
+                int length = to - from;
+                int nameLength = this.nameLengths[this.nameDepth - 1];
+                if (nameLength + length > this.names[this.nameDepth - 1].length)
+                    this.names[this.nameDepth - 1] = Arrays.copyOf(this.names[this.nameDepth - 1],
+                            Math.max(nameLength + length, this.names[this.nameDepth - 1].length * 2));
+                System.arraycopy(input, from, this.names[this.nameDepth - 1], nameLength, length);
+                this.nameLengths[this.nameDepth - 1] += length;
+            }
+        }
+
+        private void appendField(byte[] input, int from, int to)
+        {
+            int length = to - from;
+            if (this.fieldLength + length > this.fieldArray.length)
+                this.fieldArray = Arrays.copyOf(this.fieldArray, Math.max(this.fieldLength + length, this.fieldArray.length * 2));
+            System.arraycopy(input, from, this.fieldArray, this.fieldLength, length);
+            this.fieldLength += length;
+        }
+
+        private void endString() throws IOException
+        {
+            this.state = VALUE;
+            if (this.stringKind == MASKED)
+            {
+                writeString();
+                this.rule = null;
+            } else if (this.stringKind == NAME)
+                this.isName = false;
+            write(QUOTE);
+        }
+
+        private void writeString() throws IOException
+        {
+            if (this.hasEscape)
+            {
+                writeEscapedString();
+                return;
+            }
+            int length = getObfuscatedUtf8();
+            for (int i = 0, from = 0; i <= length; i++)
+                if (i == length || this.obfuscatedArray[i] == QUOTE || this.obfuscatedArray[i] == BACKSLASH
+                        || (this.obfuscatedArray[i] >= 0 && this.obfuscatedArray[i] < 0x20))
+                {
+                    write(this.obfuscatedArray, from, i);
+                    if (i < length)
+                        writeEscaped((char) this.obfuscatedArray[i]);
+                    from = i + 1;
+                }
+        }
+
+        private int getObfuscatedUtf8()
+        {
+            // a character may be replaced with one that is encoded on more bytes
+            if (this.fieldLength * 3 > this.obfuscatedArray.length)
+                this.obfuscatedArray = new byte[Math.max(this.fieldLength * 3, this.obfuscatedArray.length * 2)];
+            if (this.rule.mode == BY_SPACE)
+                return this.rule.obfuscateUtil.getObfuscatedUtf8ByDelimiter(this.fieldArray, 0, this.fieldLength, this.obfuscatedArray, 0,
+                        PJObfuscateUtil.SPACE_DELIMITERS);
+            return this.rule.obfuscateUtil.getObfuscatedUtf8(this.fieldArray, 0, this.fieldLength, this.obfuscatedArray, 0);
+        }
+
+        /**
+         * A string with escapes is unescaped into chars, obfuscated and escaped again, the escapes of the output are
+         * the ones JSON requires and a lone surrogate stays escaped.
+         */
+        private void writeEscapedString() throws IOException
+        {
+            String raw = new String(this.fieldArray, 0, this.fieldLength, StandardCharsets.UTF_8);
+            if (raw.length() > this.charArray.length)
+                this.charArray = new char[Math.max(raw.length(), this.charArray.length * 2)];
+            int length = 0;
+            for (int i = 0; i < raw.length(); i++)
+            {
+                char c = raw.charAt(i);
+                if (c == '\\' && i + 1 < raw.length())
+                {
+                    c = raw.charAt(++i);
+                    switch (c)
+                    {
+                    case 'b':
+                        c = '\b';
+                        break;
+                    case 'f':
+                        c = '\f';
+                        break;
+                    case 'n':
+                        c = '\n';
+                        break;
+                    case 'r':
+                        c = '\r';
+                        break;
+                    case 't':
+                        c = '\t';
+                        break;
+                    case 'u':
+                        if (i + 4 < raw.length())
+                            try
+                            {
+                                c = (char) Integer.parseInt(raw.substring(i + 1, i + 5), 16);
+                                i += 4;
+                            } catch (NumberFormatException e)
+                            {
+                                // not an escape, kept as it is
+                            }
+                        break;
+                    default:
+                        break;
+                    }
+                }
+                this.charArray[length++] = c;
+            }
+            // obfuscated in place
+            if (this.rule.mode == BY_SPACE)
+                this.rule.obfuscateUtil.getObfuscatedByDelimiter(CharBuffer.wrap(this.charArray, 0, length), 0, length, this.charArray, 0,
+                        PJObfuscateUtil.SPACE_DELIMITERS);
+            else
+                this.rule.obfuscateUtil.getObfuscated(this.charArray, 0, length, this.charArray, 0);
+            for (int i = 0; i < length; i++)
+            {
+                char c = this.charArray[i];
+                if (c < 0x80)
+                {
+                    if (c == '"' || c == '\\' || c < 0x20)
+                        writeEscaped(c);
+                    else
+                        write((byte) c);
+                } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(this.charArray[i + 1]))
+                {
+                    int codePoint = Character.toCodePoint(c, this.charArray[++i]);
+                    write((byte) (0xF0 | (codePoint >>> 18)));
+                    write((byte) (0x80 | ((codePoint >>> 12) & 0x3F)));
+                    write((byte) (0x80 | ((codePoint >>> 6) & 0x3F)));
+                    write((byte) (0x80 | (codePoint & 0x3F)));
+                } else if (Character.isSurrogate(c))
+                    writeEscaped(c);
+                else if (c < 0x800)
+                {
+                    write((byte) (0xC0 | (c >>> 6)));
+                    write((byte) (0x80 | (c & 0x3F)));
+                } else
+                {
+                    write((byte) (0xE0 | (c >>> 12)));
+                    write((byte) (0x80 | ((c >>> 6) & 0x3F)));
+                    write((byte) (0x80 | (c & 0x3F)));
+                }
+            }
+        }
+
+        private void writeEscaped(char c) throws IOException
+        {
+            write(BACKSLASH);
+            switch (c)
+            {
+            case '"':
+            case '\\':
+                write((byte) c);
+                break;
+            case '\b':
+                write((byte) 'b');
+                break;
+            case '\f':
+                write((byte) 'f');
+                break;
+            case '\n':
+                write((byte) 'n');
+                break;
+            case '\r':
+                write((byte) 'r');
+                break;
+            case '\t':
+                write((byte) 't');
+                break;
+            default:
+                write((byte) 'u');
+                for (int shift = 12; shift >= 0; shift -= 4)
+                    write((byte) Character.forDigit((c >>> shift) & 0xF, 16));
+                break;
+            }
+        }
+
+        private void writeNumber() throws IOException
+        {
+            if (this.rule == null)
+                return;
+            int length = getObfuscatedUtf8();
+            this.rule = null;
+            if (isNumber(this.obfuscatedArray, length))
+                write(this.obfuscatedArray, 0, length);
+            else
+            {
+                write(QUOTE);
+                for (int i = 0, from = 0; i <= length; i++)
+                    if (i == length || this.obfuscatedArray[i] == QUOTE || this.obfuscatedArray[i] == BACKSLASH
+                            || (this.obfuscatedArray[i] >= 0 && this.obfuscatedArray[i] < 0x20))
+                    {
+                        write(this.obfuscatedArray, from, i);
+                        if (i < length)
+                            writeEscaped((char) this.obfuscatedArray[i]);
+                        from = i + 1;
+                    }
+                write(QUOTE);
+            }
+        }
+
+        private long finish() throws IOException
+        {
+            if (this.state == NUMBER)
+                writeNumber();
+            else if ((this.state == STRING || this.state == STRING_ESCAPE) && this.stringKind == MASKED)
+                // an unterminated string is copied as it is
+                write(this.fieldArray, 0, this.fieldLength);
+            flush();
+            return this.valueCount;
+        }
+
+        private void write(byte b) throws IOException
+        {
+            if (!this.outputBuffer.hasRemaining())
+                flush();
+            this.outputBuffer.put(b);
+        }
+
+        private void write(byte[] input, int from, int to) throws IOException
+        {
+            while (from < to)
+            {
+                if (!this.outputBuffer.hasRemaining())
+                    flush();
+                int length = Math.min(to - from, this.outputBuffer.remaining());
+                this.outputBuffer.put(input, from, length);
+                from += length;
+            }
+        }
+
+        private void flush() throws IOException
+        {
+            this.outputBuffer.flip();
+            while (this.outputBuffer.hasRemaining())
+                this.channel.write(this.outputBuffer);
+            this.outputBuffer.clear();
+        }
+    }
+
+    /**
+     * -?(0|[1-9][0-9]*)(\.[0-9]+)?([eE][+-]?[0-9]+)?
+     */
+    private static boolean isNumber(byte[] array, int length)
+    {
+        int i = 0;
+        if (i < length && array[i] == '-')
+            i++;
+        if (i == length || array[i] < '0' || array[i] > '9')
+            return false;
+        if (array[i++] == '0' && i < length && array[i] >= '0' && array[i] <= '9')
+            return false;
+        while (i < length && array[i] >= '0' && array[i] <= '9')
+            i++;
+        if (i < length && array[i] == '.')
+        {
+            if (++i == length || array[i] < '0' || array[i] > '9')
+                return false;
+            while (i < length && array[i] >= '0' && array[i] <= '9')
+                i++;
+        }
+        if (i < length && (array[i] == 'e' || array[i] == 'E'))
+        {
+            if (++i < length && (array[i] == '+' || array[i] == '-'))
+                i++;
+            if (i == length || array[i] < '0' || array[i] > '9')
+                return false;
+            while (i < length && array[i] >= '0' && array[i] <= '9')
+                i++;
+        }
+        return i == length;
+    }
+}
@@ -0,0 +1,132 @@
+package pj.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.RandomAccess;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ *
+ *         Obfuscates big batches of values on all the cores. The batch is split in halves until a part holds no
+ *         more than the threshold number of values, the parts are obfuscated by the workers of a ForkJoinPool and
+ *         the output keeps the order of the input. All the workers share the combination tables of the same
+ *         PJObfuscateUtil instance, they are read only.
+ *
+ *         Unlike PJObfuscateUtil.getObfuscated(List), each value is obfuscated on its own, exactly as if
+ *         getObfuscated(String) or getObfuscatedBySpace(String) was called for each of them.
+ *
+ *         Here is an example: -
+ *         PJObfuscateParallel parallel = new PJObfuscateParallel(new PJObfuscateUtil(1934233), new ForkJoinPool(32), 2048);
+ *         List<String> obfuscatedEmails = parallel.getObfuscated(emails);
+ *         String[] obfuscatedNames = parallel.getObfuscatedBySpace(fullNames);
+ *
+ *         To obfuscate a file on all the cores, see PJObfuscateFileProcessor.process(Path, Path, ForkJoinPool).
+ */
+
+public final class PJObfuscateParallel
+{
+    private static final int DEFAULT_THRESHOLD = 4096;
+    private final PJObfuscateUtil obfuscateUtil;
+    private final ForkJoinPool pool;
+    private final int threshold;
+
+    public PJObfuscateParallel(PJObfuscateUtil obfuscateUtil)
+    {
+        this(obfuscateUtil, ForkJoinPool.commonPool(), DEFAULT_THRESHOLD);
+    }
+
+    /**
+     * threshold is the number of values below which a part of the batch is not split anymore. A small threshold
+     * balances the work better, a big one reduces the overhead of the tasks.
+     */
+    public PJObfuscateParallel(PJObfuscateUtil obfuscateUtil, ForkJoinPool pool, int threshold)
+    {
+        if (obfuscateUtil == null || pool == null)
+            throw new IllegalArgumentException("PJObfuscateUtil and ForkJoinPool are mandatory");
+        if (threshold < 1)
+            throw new IllegalArgumentException("Illegal threshold: " + threshold);
+        this.obfuscateUtil = obfuscateUtil;
+        this.pool = pool;
+        this.threshold = threshold;
+    }
+
+    public List<String> getObfuscated(List<String> input)
+    {
+        return getObfuscated(input, false);
+    }
+
+    public List<String> getObfuscatedBySpace(List<String> input)
+    {
+        return getObfuscated(input, true);
+    }
+
+    public String[] getObfuscated(String[] input)
+    {
+        return getObfuscated(input, false);
+    }
+
+    public String[] getObfuscatedBySpace(String[] input)
+    {
+        return getObfuscated(input, true);
+    }
+
+    private List<String> getObfuscated(List<String> input, boolean isBySpace)
+    {
+        if (input == null || input.size() == 0)
+            return input;
+        // splitting needs cheap access by index
+        if (!(input instanceof RandomAccess))
+            input = new ArrayList<>(input);
+        String[] output = new String[input.size()];
+        this.pool.invoke(new ObfuscateTask(input, output, 0, output.length, isBySpace));
+        return Arrays.asList(output);
+    }
+
+    private String[] getObfuscated(String[] input, boolean isBySpace)
+    {
+        if (input == null || input.length == 0)
+            return input;
+        String[] output = new String[input.length];
+        this.pool.invoke(new ObfuscateTask(Arrays.asList(input), output, 0, output.length, isBySpace));
+        return output;
+    }
+
+    private final class ObfuscateTask extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
+        private final List<String> input;
+        private final String[] output;
+        private final int from;
+        private final int to;
+        private final boolean isBySpace;
+
+        private ObfuscateTask(List<String> input, String[] output, int from, int to, boolean isBySpace)
+        {
+            this.input = input;
+            this.output = output;
+            this.from = from;
+            this.to = to;
+            this.isBySpace = isBySpace;
+        }
+
+        @Override
+        protected void compute()
+        {
+            if (this.to - this.from <= threshold)
+            {
+                for (int i = this.from; i < this.to; i++)
+                    if (this.isBySpace)
+                        this.output[i] = obfuscateUtil.getObfuscatedBySpace(this.input.get(i));
+                    else
+                        this.output[i] = obfuscateUtil.getObfuscated(this.input.get(i));
+            } else
+            {
+                int middle = (this.from + this.to) >>> 1;
+                invokeAll(new ObfuscateTask(this.input, this.output, this.from, middle, this.isBySpace),
+                        new ObfuscateTask(this.input, this.output, middle, this.to, this.isBySpace));
+            }
+        }
+    }
+}
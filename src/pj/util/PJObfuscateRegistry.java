@@ -0,0 +1,147 @@
+package pj.util;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ *
+ *         Hands out one shared PJObfuscateUtil instance per configuration to the whole process. A job that creates
+ *         an instance per column, per partition or per thread pool with the same parameters builds the combination
+ *         tables once and keeps a single copy of them in memory. PJObfuscateUtil instances are thread-safe and
+ *         their output only depends on their parameters, so a shared instance obfuscates exactly like a new one.
+ *
+ *         The configuration is reduced to the fingerprint of the parameters the combinations depend on, the seed,
+ *         the ranges, the case flag, maxCombination and the content of the default map and of the userMap, along
+ *         with maxCachedCombination and hashMode. Two userMap objects with the same rules share their instance. The
+ *         registry only holds its instances weakly, an instance nobody uses anymore is released by the garbage
+ *         collector and built again the next time it is asked for.
+ *
+ *         Here is an example: -
+ *         PJObfuscateUtil cityUtil = PJObfuscateRegistry.getInstance(1934233, true);
+ *         PJObfuscateUtil countryUtil = PJObfuscateRegistry.getInstance(1934233, true); // same instance as cityUtil
+ *
+ *         Like the constructors, building an instance shuffles the output arrays of the userMap, they are shuffled
+ *         the same way when a shared instance is handed out.
+ */
+
+public final class PJObfuscateRegistry
+{
+    private static final ConcurrentHashMap<ConfigurationKey, EntryReference> ENTRIES = new ConcurrentHashMap<>();
+    private static final ReferenceQueue<PJObfuscateUtil> RELEASED_QUEUE = new ReferenceQueue<>();
+
+    private PJObfuscateRegistry()
+    {
+    }
+
+    public static PJObfuscateUtil getInstance(int seedValue)
+    {
+        return getInstance(seedValue, false);
+    }
+
+    public static PJObfuscateUtil getInstance(int seedValue, boolean isCaseInsensitiveObfuscate)
+    {
+        return getInstance(seedValue, isCaseInsensitiveObfuscate, 200);
+    }
+
+    public static PJObfuscateUtil getInstance(int seedValue, boolean isCaseInsensitiveObfuscate, int maxCombination)
+    {
+        return getInstance(seedValue, null, -1, -1, isCaseInsensitiveObfuscate, maxCombination, 0, PJObfuscateUtil.SAMPLED_HASH);
+    }
+
+    /**
+     * Returns the shared instance of new PJObfuscateUtil(seedValue, userMap, startRange, endRange,
+     * isCaseInsensitiveObfuscate, maxCombination, maxCachedCombination, hashMode), it is built the first time it is
+     * asked for. Threads asking for the same missing instance wait for the one building it, instances of other
+     * configurations are mostly handed out meanwhile, unless their keys fall into the same bin of the map.
+     */
+    public static PJObfuscateUtil getInstance(int seedValue, Map<List<int[]>, Integer> userMap, int startRange, int endRange,
+            boolean isCaseInsensitiveObfuscate, int maxCombination, int maxCachedCombination, int hashMode)
+    {
+        ConfigurationKey key = new ConfigurationKey(
+                PJObfuscateUtil.getFingerprint(seedValue, userMap, startRange, endRange, isCaseInsensitiveObfuscate, maxCombination),
+                Math.max(0, maxCachedCombination), hashMode);
+        expungeReleasedEntries();
+        // held strongly from inside compute, the instance cannot be released before it is returned
+        PJObfuscateUtil[] obfuscateUtil = new PJObfuscateUtil[1];
+        boolean[] isBuilt = new boolean[1];
+        ENTRIES.compute(key, (entryKey, reference) ->
+        {
+            obfuscateUtil[0] = reference == null ? null : reference.get();
+            if (obfuscateUtil[0] != null)
+                return reference;
+            obfuscateUtil[0] = new PJObfuscateUtil(seedValue, userMap, startRange, endRange, isCaseInsensitiveObfuscate, maxCombination,
+                    maxCachedCombination, hashMode);
+            isBuilt[0] = true;
+            return new EntryReference(obfuscateUtil[0], entryKey);
+        });
+        if (!isBuilt[0])
+            PJObfuscateUtil.shuffleOutputArrays(seedValue, userMap, maxCombination);
+        return obfuscateUtil[0];
+    }
+
+    /**
+     * Returns the number of configurations whose instance is still in use.
+     */
+    public static int getSize()
+    {
+        expungeReleasedEntries();
+        int size = 0;
+        for (EntryReference reference : ENTRIES.values())
+            if (reference.get() != null)
+                size++;
+        return size;
+    }
+
+    private static void expungeReleasedEntries()
+    {
+        Reference<? extends PJObfuscateUtil> reference = null;
+        while ((reference = RELEASED_QUEUE.poll()) != null)
+            // a newer instance of the same configuration may already have replaced it
+            ENTRIES.remove(((EntryReference) reference).key, reference);
+    }
+
+    private static final class EntryReference extends WeakReference<PJObfuscateUtil>
+    {
+        private final ConfigurationKey key;
+
+        private EntryReference(PJObfuscateUtil obfuscateUtil, ConfigurationKey key)
+        {
+            super(obfuscateUtil, RELEASED_QUEUE);
+            this.key = key;
+        }
+    }
+
+    private static final class ConfigurationKey
+    {
+        private final ByteBuffer fingerprint;
+        private final int maxCachedCombination;
+        private final int hashMode;
+
+        private ConfigurationKey(byte[] fingerprint, int maxCachedCombination, int hashMode)
+        {
+            this.fingerprint = ByteBuffer.wrap(fingerprint);
+            this.maxCachedCombination = maxCachedCombination;
+            this.hashMode = hashMode;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return (this.fingerprint.hashCode() * 31 + this.maxCachedCombination) * 31 + this.hashMode;
+        }
+
+        @Override
+        public boolean equals(Object object)
+        {
+            if (!(object instanceof ConfigurationKey))
+                return false;
+            ConfigurationKey key = (ConfigurationKey) object;
+            return this.fingerprint.equals(key.fingerprint) && this.maxCachedCombination == key.maxCachedCombination && this.hashMode == key.hashMode;
+        }
+    }
+}
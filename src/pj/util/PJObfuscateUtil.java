@@ -1,13 +1,35 @@
 package pj.util;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.IntStream;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
 
 /**
  *
@@ -65,6 +87,12 @@ import java.util.regex.Pattern;
  *                          map.put(Arrays.asList(new int[] { 65, 69, 73, 79, 85 }), 1);
  *                          
  *                          Where 'A' ascii value is 65, 'E' ascii value is 69 and so on
+ *
+ *                          Code points above the BMP such as emoji or CJK Extension B can be passed as well,
+ *                          they are obfuscated as whole code points and never as broken surrogate halves.
+ *                          A rule must not mix them with BMP characters and must replace them with other
+ *                          code points above the BMP, for example
+ *                          map.put(Arrays.asList(new int[] { 0x1F600, 0x1F64F }), 0);
  *                          
  *                      b. You can also replace a range of characters  with another range. For
  *                         example if you wish to replace all the lowercase with randomly distributed uppercase
@@ -90,6 +118,10 @@ import java.util.regex.Pattern;
  *                  It is advisable to specify the start and end range 
  *                  depending on the type of character sets you are dealing with. If any character falls
  *                  outside the specified range, it will not be obfuscated.
+ *                  Only the characters inside the range that are covered by the rules are kept in memory, each
+ *                  combination holds one char per configured character and the rest are simply passed through.
+ *                  Code points above the BMP configured in the userMap are obfuscated as long as they are inside the
+ *                  range, when endRange is not specified they are not limited by it.
  *                  
  *              boolean isCaseInsensitiveObfuscate
  *                  If you wish to convert small and cap characters with same random character then pass this value as true
@@ -146,16 +178,48 @@ import java.util.regex.Pattern;
 
 public final class PJObfuscateUtil
 {
-    private static final Pattern PATTERN_BY_SPACE = Pattern.compile("(\\s*)(\\S+)?(\\s*)");
+    public static final String SPACE_DELIMITERS = " \t\n\u000B\f\r";
+    public static final String EMAIL_DELIMITERS = SPACE_DELIMITERS + "@.";
+    // the combination is picked from up to five characters sampled from the value, the hash of the first versions
+    public static final int SAMPLED_HASH = 0;
+    // the combination is picked from a seeded 64-bit hash of every character of the value
+    public static final int WHOLE_VALUE_HASH = 1;
     private static final int MAX_CHAR_INDEX = 65534;
+    private static final int TABLES_MAGIC = 0x504A4F54;
+    private static final int TABLES_VERSION = 2;
+    // each combination table ends with the obfuscated value of the first 256 characters, indexed directly
+    private static final int LATIN1_SIZE = 256;
+    // lists bigger than that are de-duplicated by getObfuscated(List)
+    private static final int DEDUPLICATE_SIZE = 16;
+    // below that many combinations the tables are built faster by the constructing thread alone
+    private static final int PARALLEL_COMBINATION_COUNT = 32;
+    private static final boolean IS_LATIN1_FAST_PATH = !"false".equals(System.getProperty("pj.util.latin1FastPath"));
+    // a constant, when the metrics are off the JIT drops every measurement
+    private static final boolean IS_METRICS_ENABLED = "true".equals(System.getProperty("pj.util.metrics"));
     private int maxCombination = 1;
     private long seedValue;
-    private List<int[]> masterList = null;
+    private List<char[]> masterList = null;
+    private int[] slotIndex = null;
+    private int slotIndexBase = 0;
+    private int slotCount = 0;
+    private int[][] supplementaryIndex = null;
+    private int supplementaryCount = 0;
+    private byte[] fingerprint = null;
+    private MappedByteBuffer[] mappedList = null;
+    private int mappedCombinationCount = 0;
+    private List<ObfuscationRule> ruleList = null;
+    private AtomicReferenceArray<char[]> lazyList = null;
+    private int[] lazyCachedCombination = null;
+    private boolean[] lazyRecentlyUsed = null;
+    private int lazyCachedCount = 0;
+    private int lazyClockHand = 0;
     private int[] caseInsensitiveList = null;
     private boolean isCaseInsensitiveObfuscate = false;
+    private int hashMode = SAMPLED_HASH;
     private int startRange = 0;
     private int endRange = MAX_CHAR_INDEX;
     private Map<List<int[]>, Integer> userMap = new LinkedHashMap<>();
+    private Metrics metrics = null;
 
     public PJObfuscateUtil(int seedValue)
     {
@@ -185,6 +249,168 @@ public final class PJObfuscateUtil
     public PJObfuscateUtil(int seedValue, Map<List<int[]>, Integer> userMap, int startRange, int endRange, boolean isCaseInsensitiveObfuscate,
             int maxCombination)
     {
+        this(seedValue, userMap, startRange, endRange, isCaseInsensitiveObfuscate, maxCombination, 0);
+    }
+
+    /**
+     * Same as the other constructors, except maxCachedCombination. When it is greater than 0, the combinations are
+     * not built up front but the first time an input value hashes to them, and at most maxCachedCombination of them
+     * are kept in memory. It makes the instance almost free to create and allows a very big maxCombination, the
+     * output is exactly the same as the one of an instance that builds all the combinations up front.
+     */
+    public PJObfuscateUtil(int seedValue, Map<List<int[]>, Integer> userMap, int startRange, int endRange, boolean isCaseInsensitiveObfuscate,
+            int maxCombination, int maxCachedCombination)
+    {
+        this(seedValue, userMap, startRange, endRange, isCaseInsensitiveObfuscate, maxCombination, maxCachedCombination, SAMPLED_HASH);
+    }
+
+    /**
+     * Same as the other constructors, except hashMode that tells how the combination of a value is picked.
+     * SAMPLED_HASH, the default, sums up to five characters of the value. The sum of short values is small, so with a
+     * big maxCombination most of the combinations are never used, and values made of the same characters at the same
+     * places collide. WHOLE_VALUE_HASH hashes every character of the value with the seed and reaches all the
+     * combinations evenly, see getCombinationReport(Iterable) to compare both on your data. Changing the hashMode
+     * changes the obfuscated values, the whole dataset must be obfuscated again.
+     */
+    public PJObfuscateUtil(int seedValue, Map<List<int[]>, Integer> userMap, int startRange, int endRange, boolean isCaseInsensitiveObfuscate,
+            int maxCombination, int maxCachedCombination, int hashMode)
+    {
+        long constructionStart = System.nanoTime();
+        prepareParameters(seedValue, userMap, startRange, endRange, isCaseInsensitiveObfuscate, maxCombination, hashMode);
+        prepareSlotIndex();
+        prepareSupplementaryIndex();
+        if (maxCachedCombination > 0)
+            prepareLazyList(maxCachedCombination);
+        else
+        {
+            // each combination only depends on the seed, the parsed rules and the replayed output states, none
+            // of them is written anymore, so the combinations are built on all the cores of the common pool
+            char[][] obfuscatedArrays = new char[maxCombination + 1][];
+            IntStream combinations = IntStream.rangeClosed(0, maxCombination);
+            if (maxCombination >= PARALLEL_COMBINATION_COUNT)
+                combinations = combinations.parallel();
+            combinations.forEach(i -> obfuscatedArrays[i] = getObfuscatedArray(i));
+            this.masterList = Arrays.asList(obfuscatedArrays);
+            this.ruleList = null;
+        }
+        if (IS_METRICS_ENABLED)
+            this.metrics = new Metrics(this, this.maxCombination, System.nanoTime() - constructionStart);
+    }
+
+    /**
+     * Same as PJObfuscateUtil(int, Map, int, int, boolean, int, int) except the combinations are not built from the
+     * seed but read from a file written by exportTables(Path). The file is memory mapped, the combinations are copied
+     * from it the first time an input value hashes to them and all the processes that read the same file share one
+     * copy of it in the page cache. When maxCachedCombination is 0 every combination is kept once it is read.
+     * 
+     * The parameters must be exactly the ones of the instance that exported the file, they are checked against the
+     * fingerprint stored in the file and an IllegalArgumentException is thrown when they do not match.
+     */
+    public PJObfuscateUtil(Path tables, int seedValue, Map<List<int[]>, Integer> userMap, int startRange, int endRange,
+            boolean isCaseInsensitiveObfuscate, int maxCombination, int maxCachedCombination) throws IOException
+    {
+        this(tables, seedValue, userMap, startRange, endRange, isCaseInsensitiveObfuscate, maxCombination, maxCachedCombination, SAMPLED_HASH);
+    }
+
+    /**
+     * Same as PJObfuscateUtil(Path, int, Map, int, int, boolean, int, int) with the given hashMode, the tables do not
+     * depend on it.
+     */
+    public PJObfuscateUtil(Path tables, int seedValue, Map<List<int[]>, Integer> userMap, int startRange, int endRange,
+            boolean isCaseInsensitiveObfuscate, int maxCombination, int maxCachedCombination, int hashMode) throws IOException
+    {
+        long constructionStart = System.nanoTime();
+        prepareParameters(seedValue, userMap, startRange, endRange, isCaseInsensitiveObfuscate, maxCombination, hashMode);
+        this.ruleList = null;
+        readTables(tables);
+        prepareLazyList(maxCachedCombination > 0 ? maxCachedCombination : this.maxCombination);
+        if (IS_METRICS_ENABLED)
+            this.metrics = new Metrics(this, this.maxCombination, System.nanoTime() - constructionStart);
+    }
+
+    /**
+     * Returns the metrics of this instance, or null when they are off. See Metrics to turn them on.
+     */
+    public Metrics getMetrics()
+    {
+        return this.metrics;
+    }
+
+    /**
+     * Returns the bytes held by the combination tables and their indexes. The upper case table shared by all the
+     * instances and the pages of a memory mapped file are not counted.
+     */
+    long getTableFootprint()
+    {
+        long tableCount = this.masterList != null ? this.masterList.size() : this.lazyCachedCount;
+        long footprint = tableCount * getTableLength() * Character.BYTES + (long) this.slotIndex.length * Integer.BYTES;
+        if (this.supplementaryIndex != null)
+            for (int[] block : this.supplementaryIndex)
+                footprint += Long.BYTES + (block == null ? 0 : block.length * Integer.BYTES);
+        if (this.ruleList != null)
+            for (ObfuscationRule rule : this.ruleList)
+                if (rule.outputStates != null)
+                    footprint += (long) rule.outputStates.length * rule.output.length * Integer.BYTES;
+        if (this.lazyList != null)
+            footprint += (long) this.maxCombination * (Long.BYTES + 1) + (long) this.lazyCachedCombination.length * Integer.BYTES;
+        return footprint;
+    }
+
+    /**
+     * Counts the characters of a sampled value that are passed through because no slot of the combinations covers
+     * them, for the metrics.
+     */
+    private int getPassedThroughCount(CharSequence input, int offset, int length)
+    {
+        int count = 0;
+        for (int i = offset; i < offset + length; i++)
+        {
+            char c = input.charAt(i);
+            if (Character.isHighSurrogate(c) && i + 1 < offset + length && Character.isLowSurrogate(input.charAt(i + 1)))
+            {
+                int codePoint = Character.toCodePoint(c, input.charAt(++i));
+                if (this.supplementaryIndex == null || getSupplementarySlot(codePoint) == 0)
+                    count += 2;
+            } else
+            {
+                int index = c - this.slotIndexBase;
+                if (index < 0 || index >= this.slotIndex.length || this.slotIndex[index] == 0)
+                    count++;
+            }
+        }
+        return count;
+    }
+
+    private void addMetrics(int operation, long sampleStart, CharSequence input, String delimiters)
+    {
+        this.metrics.addValues(1, input.length());
+        if (sampleStart == Long.MIN_VALUE)
+            return;
+        long nanos = System.nanoTime() - sampleStart;
+        int combination = -1;
+        if (delimiters == null)
+            combination = getHash(input, 0, input.length());
+        else
+            for (int i = 0; i < input.length() && combination < 0; i++)
+                if (!isDelimiter(input.charAt(i), delimiters))
+                {
+                    // the combination of the first word stands for the value
+                    int end = i;
+                    while (end < input.length() && !isDelimiter(input.charAt(end), delimiters))
+                        end++;
+                    combination = getHash(input, i, end - i);
+                }
+        this.metrics.addSample(operation, nanos, combination, input.length(), getPassedThroughCount(input, 0, input.length()));
+    }
+
+    private void prepareParameters(int seedValue, Map<List<int[]>, Integer> userMap, int startRange, int endRange, boolean isCaseInsensitiveObfuscate,
+            int maxCombination, int hashMode)
+    {
+        if (maxCombination < 0)
+            throw new IllegalArgumentException("Illegal maxCombination: " + maxCombination);
+        if (hashMode != SAMPLED_HASH && hashMode != WHOLE_VALUE_HASH)
+            throw new IllegalArgumentException("Illegal hashMode: " + hashMode);
+        this.hashMode = hashMode;
         this.seedValue = seedValue;
         if (userMap != null)
             this.userMap = userMap;
@@ -195,45 +421,179 @@ public final class PJObfuscateUtil
         this.isCaseInsensitiveObfuscate = isCaseInsensitiveObfuscate;
         if (maxCombination > 0)
             this.maxCombination = maxCombination;
-        this.masterList = new ArrayList<>(maxCombination);
-        for (int i = 0; i <= maxCombination; i++)
-            masterList.add(getObfuscatedArray(i));
-        if (isCaseInsensitiveObfuscate)
+        this.ruleList = new ArrayList<>();
+        Map<List<int[]>, Integer> defaultMap = getDefaultMap();
+        prepareRuleList(defaultMap, this.ruleList);
+        prepareRuleList(this.userMap, this.ruleList);
+        // the output arrays of the userMap are shuffled by prepareOutputStates, take the fingerprint before
+        this.fingerprint = getFingerprint(this.seedValue, this.startRange, this.endRange, isCaseInsensitiveObfuscate, maxCombination, defaultMap,
+                this.userMap);
+        prepareOutputStates(maxCombination);
+        // the whole value hash folds the case on the fly
+        if (isCaseInsensitiveObfuscate && hashMode == SAMPLED_HASH)
+            caseInsensitiveList = CaseInsensitiveList.LIST;
+    }
+
+    /**
+     * The upper case of every char, it is the same for all the instances so it is built once, the first time an
+     * instance needs it.
+     */
+    private static final class CaseInsensitiveList
+    {
+        private static final int[] LIST = new int[Character.MAX_VALUE + 1];
+
+        static
+        {
+            for (int i = 0; i <= Character.MAX_VALUE; i++)
+                LIST[i] = Character.toUpperCase((char) i);
+        }
+    }
+
+    private void prepareLazyList(int maxCachedCombination)
+    {
+        this.lazyList = new AtomicReferenceArray<>(this.maxCombination);
+        this.lazyCachedCombination = new int[Math.min(maxCachedCombination, this.maxCombination)];
+        this.lazyRecentlyUsed = new boolean[this.maxCombination];
+    }
+
+    private final char[] getArrayInPlay(char[] input, int offset, int length)
+    {
+        return getCombination(getHash(input, offset, length));
+    }
+
+    private final char[] getArrayInPlay(CharSequence input, int offset, int length)
+    {
+        return getCombination(getHash(input, offset, length));
+    }
+
+    private final int getHash(char[] input, int offset, int length)
+    {
+        if (this.hashMode == WHOLE_VALUE_HASH)
+        {
+            long hash = getWholeValueHash(length);
+            for (int i = offset; i < offset + length; i++)
+                hash = getWholeValueHash(hash, input[i]);
+            return getWholeValueHash(hash);
+        }
+        int last = length - 1;
+        return getHash(length, input[offset], input[offset + last / 4], input[offset + last / 2], input[offset + last * 3 / 4], input[offset + last]);
+    }
+
+    private final int getHash(CharSequence input, int offset, int length)
+    {
+        if (this.hashMode == WHOLE_VALUE_HASH)
         {
-            caseInsensitiveList = new int[MAX_CHAR_INDEX];
-            for (int i = 0; i < MAX_CHAR_INDEX; i++)
-                caseInsensitiveList[i] = Character.toUpperCase((char) i);
+            long hash = getWholeValueHash(length);
+            for (int i = offset; i < offset + length; i++)
+                hash = getWholeValueHash(hash, input.charAt(i));
+            return getWholeValueHash(hash);
         }
+        int last = length - 1;
+        return getHash(length, input.charAt(offset), input.charAt(offset + last / 4), input.charAt(offset + last / 2),
+                input.charAt(offset + last * 3 / 4), input.charAt(offset + last));
+    }
+
+    /**
+     * The whole value hash is a FNV-1a over the characters, started from the seed and the length and finished with
+     * the MurmurHash3 mixer. The combination is taken from the high bits so that all of them are reached evenly.
+     */
+    private final long getWholeValueHash(int length)
+    {
+        return (this.seedValue ^ length) * 0x9E3779B97F4A7C15L;
+    }
+
+    private final long getWholeValueHash(long hash, char input)
+    {
+        if (this.isCaseInsensitiveObfuscate)
+            if (input < 128)
+                input = input >= 'a' && input <= 'z' ? (char) (input - 32) : input;
+            else
+                input = Character.toUpperCase(input);
+        return (hash ^ input) * 0x100000001B3L;
+    }
+
+    private final int getWholeValueHash(long hash)
+    {
+        hash = (hash ^ (hash >>> 33)) * 0xFF51AFD7ED558CCDL;
+        hash = (hash ^ (hash >>> 33)) * 0xC4CEB9FE1A85EC53L;
+        hash ^= hash >>> 33;
+        return (int) (((hash >>> 32) * this.maxCombination) >>> 32);
     }
 
-    private final int[] getArrayInPlay(char[] input)
+    /**
+     * The hash is calculated from up to five characters sampled from the input value, the first, last and the
+     * characters at one quarter, half and three quarter of its length.
+     */
+    private final int getHash(int length, char first, char quarter, char half, char threeQuarter, char last)
     {
         int hash = 0;
-        int length = input.length - 1;
-        if (length > 4)
+        if (length > 5)
             if (isCaseInsensitiveObfuscate)
-                hash = (caseInsensitiveList[input[0]] + caseInsensitiveList[input[length / 4]] + caseInsensitiveList[input[length / 2]]
-                        + caseInsensitiveList[input[length * 3 / 4]] + caseInsensitiveList[input[length]]) % maxCombination;
+                hash = (caseInsensitiveList[first] + caseInsensitiveList[quarter] + caseInsensitiveList[half] + caseInsensitiveList[threeQuarter]
+                        + caseInsensitiveList[last]) % maxCombination;
             else
-                hash = (input[0] + input[length / 4] + input[length / 2] + input[length * 3 / 4] + input[length]) % maxCombination;
-        else if (length > 1)
+                hash = (first + quarter + half + threeQuarter + last) % maxCombination;
+        else if (length > 2)
             if (isCaseInsensitiveObfuscate)
-                hash = (caseInsensitiveList[input[0]] + caseInsensitiveList[input[length / 2]] + caseInsensitiveList[input[length]]) % maxCombination;
+                hash = (caseInsensitiveList[first] + caseInsensitiveList[half] + caseInsensitiveList[last]) % maxCombination;
             else
-                hash = (input[0] + input[length / 2] + input[length]) % maxCombination;
-        else if (length > 0)
+                hash = (first + half + last) % maxCombination;
+        else if (length > 1)
             if (isCaseInsensitiveObfuscate)
-                hash = (caseInsensitiveList[input[0]] + caseInsensitiveList[input[length]]) % maxCombination;
+                hash = (caseInsensitiveList[first] + caseInsensitiveList[last]) % maxCombination;
             else
-                hash = (input[0] + input[length]) % maxCombination;
+                hash = (first + last) % maxCombination;
         else if (isCaseInsensitiveObfuscate)
-            hash = caseInsensitiveList[input[0]] % maxCombination;
+            hash = caseInsensitiveList[first] % maxCombination;
         else
-            hash = input[0] % maxCombination;
-        return masterList.get(hash);
+            hash = first % maxCombination;
+        return hash;
+    }
+
+    /**
+     * Counts the values of the sample that are obfuscated with each combination, the element i of the returned array
+     * is the number of values that use the combination i. Nothing is obfuscated and no combination is built.
+     */
+    public int[] getCombinationDistribution(Iterable<? extends CharSequence> sample)
+    {
+        int[] distribution = new int[this.maxCombination];
+        for (CharSequence value : sample)
+            if (value != null && value.length() > 0)
+                distribution[getHash(value, 0, value.length())]++;
+        return distribution;
     }
 
-    private int[] getObfuscatedArray(int offset)
+    /**
+     * Tells how evenly the values of the sample are spread over the combinations, to size maxCombination and to
+     * choose the hashMode from real data. It reports how many combinations are used compared to what a uniform hash
+     * would use for the same number of values, and the chi-square of the counts, close to maxCombination - 1 when
+     * the values are spread evenly.
+     */
+    public String getCombinationReport(Iterable<? extends CharSequence> sample)
+    {
+        int[] distribution = getCombinationDistribution(sample);
+        long count = 0;
+        int used = 0;
+        int min = Integer.MAX_VALUE;
+        int max = 0;
+        for (int i = 0; i < distribution.length; i++)
+        {
+            count += distribution[i];
+            if (distribution[i] > 0)
+                used++;
+            min = Math.min(min, distribution[i]);
+            max = Math.max(max, distribution[i]);
+        }
+        double mean = (double) count / distribution.length;
+        double chiSquare = 0;
+        for (int i = 0; i < distribution.length && count > 0; i++)
+            chiSquare += (distribution[i] - mean) * (distribution[i] - mean) / mean;
+        double expectedUsed = distribution.length * (1 - Math.pow(1 - 1.0 / distribution.length, count));
+        return String.format("values=%d maxCombination=%d used=%d (%.1f%%) expectedUsed=%.0f min=%d max=%d mean=%.2f chiSquare=%.1f",
+                count, distribution.length, used, 100.0 * used / distribution.length, expectedUsed, min, max, mean, chiSquare);
+    }
+
+    private static Map<List<int[]>, Integer> getDefaultMap()
     {
         Map<List<int[]>, Integer> map = new LinkedHashMap<>();
         // obfuscate numeric values from 0-9, specify range
@@ -293,102 +653,574 @@ public final class PJObfuscateUtil
         // For finding the character sets range refer the following link
         // https://www.ssec.wisc.edu/~tomw/java/unicode.html
 
-        int[] obfuscatedOutputArray = new int[MAX_CHAR_INDEX];
-        Arrays.setAll(obfuscatedOutputArray, i -> i++);
-        processOutputCharArray(offset, map, obfuscatedOutputArray);
-        processOutputCharArray(offset, this.userMap, obfuscatedOutputArray);
-        return Arrays.copyOfRange(obfuscatedOutputArray, this.startRange, this.endRange + 1);
+        return map;
     }
 
-    private void processOutputCharArray(int offset, Map<List<int[]>, Integer> map, int[] obfuscatedOutputArray)
+    /**
+     * Parses the rules once, in the iteration order of the map. Rules that would not change anything are dropped.
+     */
+    private static void prepareRuleList(Map<List<int[]>, Integer> map, List<ObfuscationRule> ruleList)
     {
         for (Map.Entry<List<int[]>, Integer> entry : map.entrySet())
         {
-            if (entry.getValue() == 1)
-            { // it means you have specific index whose value should be shuffled
-                int input[] = entry.getKey().get(0);
-                int output[] = Arrays.copyOf(input, input.length);
-                if (entry.getKey().size() > 1)
-                    output = entry.getKey().get(1);
-                prepareOutputCharArray(obfuscatedOutputArray, seedValue + offset, input, output);
+            int input[] = entry.getKey().get(0);
+            int output[] = null;
+            if (entry.getKey().size() > 1)
+                output = entry.getKey().get(1);
+            ObfuscationRule rule = null;
+            if (entry.getValue() == 1) // it means you have specific index whose value should be shuffled
+                rule = ObfuscationRule.getIndexRule(input, output, entry.getKey().size() > 1);
+            else // it means you have a range you want to shuffle
+                rule = ObfuscationRule.getRangeRule(input, output);
+            if (rule != null)
+                ruleList.add(rule);
+        }
+    }
+
+    /**
+     * When the rule passes its own output array, that array is shuffled in place once per combination, so each
+     * combination depends on all the previous ones. Replaying the shuffles up front lets any combination be built
+     * on its own, it also leaves the caller's array in the same state the combinations have always left it.
+     */
+    private void prepareOutputStates(int maxCombination)
+    {
+        for (ObfuscationRule rule : this.ruleList)
+            if (rule.output != null)
+                rule.outputStates = new int[maxCombination + 1][];
+        for (int i = 0; i <= maxCombination; i++)
+            for (ObfuscationRule rule : this.ruleList)
+                if (rule.output != null)
+                {
+                    shuffleArray(rule.output, new Random(seedValue + i));
+                    rule.outputStates[i] = rule.output.clone();
+                }
+    }
+
+    /**
+     * Shuffles the output arrays of the userMap exactly like building an instance with these parameters does, so
+     * that handing out a shared instance leaves the caller's arrays in the state a new instance would have.
+     */
+    static void shuffleOutputArrays(int seedValue, Map<List<int[]>, Integer> userMap, int maxCombination)
+    {
+        if (userMap == null)
+            return;
+        List<ObfuscationRule> ruleList = new ArrayList<>();
+        prepareRuleList(userMap, ruleList);
+        for (int i = 0; i <= maxCombination; i++)
+            for (ObfuscationRule rule : ruleList)
+                if (rule.output != null)
+                    shuffleArray(rule.output, new Random((long) seedValue + i));
+    }
+
+    /**
+     * Every character of [startRange, endRange] touched by a rule gets a slot in the combination tables, the rest
+     * of the characters are passed through. It keeps the memory footprint proportional to the number of configured
+     * characters instead of the size of the range.
+     */
+    private void prepareSlotIndex()
+    {
+        boolean[] configured = new boolean[Character.MAX_VALUE + 1];
+        for (ObfuscationRule rule : this.ruleList)
+            if (rule.isSupplementary)
+                continue;
+            else if (rule.input != null)
+                for (int i = 0; i < rule.input.length; i++)
+                    configured[rule.input[i]] = true;
+            else
+                Arrays.fill(configured, rule.inFrom, rule.inTo + 1, true);
+        // characters above MAX_CHAR_INDEX inside the range have always been obfuscated to 0, keep it that way
+        for (int i = MAX_CHAR_INDEX; i <= Math.min(this.endRange, Character.MAX_VALUE); i++)
+            configured[i] = i >= this.startRange;
+        int first = -1;
+        int last = -1;
+        for (int i = this.startRange; i <= Math.min(this.endRange, Character.MAX_VALUE); i++)
+        {
+            if (configured[i])
+            {
+                if (first < 0)
+                    first = i;
+                last = i;
+            }
+        }
+        if (first < 0)
+        {
+            this.slotIndex = new int[0];
+            return;
+        }
+        this.slotIndexBase = first;
+        this.slotIndex = new int[last - first + 1];
+        for (int i = first; i <= last; i++)
+            if (configured[i])
+                this.slotIndex[i - first] = ++this.slotCount;
+    }
+
+    /**
+     * Supplementary code points are looked up through a sparse two level index, one entry per block of 256 code
+     * points and only the blocks touched by a rule are allocated. Each configured code point gets two chars of the
+     * combination tables after the BMP slots, they hold its obfuscated surrogate pair. An endRange left to its
+     * default does not limit the supplementary code points.
+     */
+    private void prepareSupplementaryIndex()
+    {
+        for (ObfuscationRule rule : this.ruleList)
+            if (rule.isSupplementary)
+                if (rule.input != null)
+                    for (int i = 0; i < rule.input.length; i++)
+                        addSupplementarySlot(rule.input[i]);
+                else
+                    for (int i = rule.inFrom; i <= rule.inTo; i++)
+                        addSupplementarySlot(i);
+    }
+
+    private void addSupplementarySlot(int codePoint)
+    {
+        if (codePoint < this.startRange || (codePoint > this.endRange && this.endRange != MAX_CHAR_INDEX))
+            return;
+        if (this.supplementaryIndex == null)
+            this.supplementaryIndex = new int[(Character.MAX_CODE_POINT + 1 - Character.MIN_SUPPLEMENTARY_CODE_POINT) >>> 8][];
+        int block = (codePoint - Character.MIN_SUPPLEMENTARY_CODE_POINT) >>> 8;
+        if (this.supplementaryIndex[block] == null)
+            this.supplementaryIndex[block] = new int[256];
+        if (this.supplementaryIndex[block][codePoint & 0xFF] == 0)
+            this.supplementaryIndex[block][codePoint & 0xFF] = this.slotCount + 1 + 2 * this.supplementaryCount++;
+    }
+
+    private final int getSupplementarySlot(int codePoint)
+    {
+        int[] block = this.supplementaryIndex[(codePoint - Character.MIN_SUPPLEMENTARY_CODE_POINT) >>> 8];
+        return block == null ? 0 : block[codePoint & 0xFF];
+    }
+
+    /**
+     * Builds the table of the given combination, it only depends on the seed, the rules and the offset.
+     */
+    private char[] getObfuscatedArray(int offset)
+    {
+        // slot 0 is never used, it stands for the characters that are passed through
+        char[] obfuscatedOutputArray = new char[getTableLength()];
+        if (this.mappedList != null)
+        {
+            ByteBuffer buffer = this.mappedList[offset / this.mappedCombinationCount].duplicate();
+            buffer.position(offset % this.mappedCombinationCount * obfuscatedOutputArray.length * 2);
+            buffer.asCharBuffer().get(obfuscatedOutputArray);
+            return obfuscatedOutputArray;
+        }
+        for (ObfuscationRule rule : this.ruleList)
+        {
+            if (rule.input != null)
+            {
+                int output[] = null;
+                if (rule.outputStates != null)
+                    output = rule.outputStates[offset];
+                else
+                {
+                    output = Arrays.copyOf(rule.input, rule.input.length);
+                    shuffleArray(output, new Random(seedValue + offset));
+                }
+                // input and output may be the very same array that is shuffled in place
+                int input[] = rule.input == rule.output ? output : rule.input;
+                for (int i = 0; i < input.length; i++)
+                    setObfuscatedChar(obfuscatedOutputArray, input[i], output[i]);
             } else
-            { // it means you have a range you want to shuffle
-                int input[] = entry.getKey().get(0);
-                int output[] = Arrays.copyOf(input, input.length);
-                if (entry.getKey().size() > 1)
-                    output = entry.getKey().get(1);
-                prepareOutputCharArray(obfuscatedOutputArray, seedValue + offset, input[0], input[1], output[0], output[1]);
+            {
+                int[] fillArray = getRandomArray(new Random(seedValue + offset), (rule.outTo - rule.outFrom + 1));
+                int startPoint = 0;
+                for (int i = rule.inFrom; i < (rule.inTo + 1); i++)
+                {
+                    setObfuscatedChar(obfuscatedOutputArray, i, fillArray[startPoint] + rule.outFrom);
+                    startPoint++;
+                }
             }
         }
+        int latin1Offset = obfuscatedOutputArray.length - LATIN1_SIZE;
+        for (int i = 0; i < LATIN1_SIZE; i++)
+            obfuscatedOutputArray[latin1Offset + i] = getObfuscated(obfuscatedOutputArray, (char) i);
+        return obfuscatedOutputArray;
     }
 
-    private final String getObfuscated(char[] inputArray)
+    private int getTableLength()
     {
-        return getObfuscated(getArrayInPlay(inputArray), inputArray);
+        return this.slotCount + 1 + 2 * this.supplementaryCount + LATIN1_SIZE;
     }
 
-    private final String getObfuscated(int[] arrayInPlay, char[] inputArray)
+    private void setObfuscatedChar(char[] obfuscatedOutputArray, int input, int output)
     {
-        int size = arrayInPlay.length;
-        char[] returnArray = new char[inputArray.length];
-        for (int i = 0; i < inputArray.length; i++)
+        if (input >= Character.MIN_SUPPLEMENTARY_CODE_POINT)
         {
-            int index = inputArray[i] - this.startRange;
-            if (index > -1 && index < size)
-                returnArray[i] = (char) arrayInPlay[index];
+            int slot = this.supplementaryIndex == null ? 0 : getSupplementarySlot(input);
+            if (slot != 0)
+            {
+                obfuscatedOutputArray[slot] = Character.highSurrogate(output);
+                obfuscatedOutputArray[slot + 1] = Character.lowSurrogate(output);
+            }
+            return;
+        }
+        int index = input - this.slotIndexBase;
+        if (index > -1 && index < this.slotIndex.length && this.slotIndex[index] != 0)
+            obfuscatedOutputArray[this.slotIndex[index]] = (char) output;
+    }
+
+    /**
+     * Returns the table of the combination, in lazy mode it is built the first time its hash is hit. Lookups
+     * do not lock, only the threads that build a missing table synchronize to add it to the cache.
+     */
+    private char[] getCombination(int offset)
+    {
+        if (this.lazyList == null)
+            return this.masterList.get(offset);
+        char[] obfuscatedArray = this.lazyList.get(offset);
+        if (obfuscatedArray != null)
+        {
+            this.lazyRecentlyUsed[offset] = true;
+            return obfuscatedArray;
+        }
+        obfuscatedArray = getObfuscatedArray(offset);
+        synchronized (this.lazyCachedCombination)
+        {
+            char[] cachedArray = this.lazyList.get(offset);
+            if (cachedArray != null)
+                return cachedArray;
+            int position = this.lazyCachedCount;
+            if (position < this.lazyCachedCombination.length)
+                this.lazyCachedCount++;
             else
-                returnArray[i] = (char) inputArray[i];
+            {
+                // Clock eviction, recently used tables get a second chance before they are dropped
+                for (int i = 0; i < this.lazyCachedCombination.length && this.lazyRecentlyUsed[this.lazyCachedCombination[this.lazyClockHand]]; i++)
+                {
+                    this.lazyRecentlyUsed[this.lazyCachedCombination[this.lazyClockHand]] = false;
+                    this.lazyClockHand = (this.lazyClockHand + 1) % this.lazyCachedCombination.length;
+                }
+                position = this.lazyClockHand;
+                this.lazyList.set(this.lazyCachedCombination[position], null);
+                this.lazyClockHand = (this.lazyClockHand + 1) % this.lazyCachedCombination.length;
+            }
+            this.lazyCachedCombination[position] = offset;
+            this.lazyRecentlyUsed[offset] = false;
+            this.lazyList.set(offset, obfuscatedArray);
         }
-        return new String(returnArray);
+        return obfuscatedArray;
     }
 
-    private static int[] getRandomArray(Random random, int size)
+    /**
+     * Takes a SHA-256 of everything the combinations depend on, the parameters of the constructor and the rules of
+     * the default map and of the userMap. Two instances with the same fingerprint obfuscate the same way.
+     */
+    static byte[] getFingerprint(int seedValue, Map<List<int[]>, Integer> userMap, int startRange, int endRange,
+            boolean isCaseInsensitiveObfuscate, int maxCombination)
     {
-        int[] randomArray = new int[size];
-        Arrays.setAll(randomArray, i -> i++);
-        shuffleArray(randomArray, random);
-        return randomArray;
+        // same defaults as prepareParameters
+        int start = startRange > 0 ? startRange : 0;
+        int end = endRange > 0 && start < endRange ? endRange : MAX_CHAR_INDEX;
+        return getFingerprint(seedValue, start, end, isCaseInsensitiveObfuscate, maxCombination, getDefaultMap(),
+                userMap != null ? userMap : new LinkedHashMap<>());
     }
 
-    private static void shuffleArray(int[] array, Random random)
+    private static byte[] getFingerprint(long seedValue, int startRange, int endRange, boolean isCaseInsensitiveObfuscate, int maxCombination,
+            Map<List<int[]>, Integer> defaultMap, Map<List<int[]>, Integer> userMap)
     {
-        for (int i = 0; i < array.length; i++)
+        try
         {
-            int rand = random.nextInt(array.length);
-            int temp = array[rand];
-            array[rand] = array[i];
-            array[i] = temp;
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream output = new DataOutputStream(bytes);
+            output.writeInt(TABLES_VERSION);
+            output.writeLong(seedValue);
+            output.writeInt(startRange);
+            output.writeInt(endRange);
+            output.writeBoolean(isCaseInsensitiveObfuscate);
+            output.writeInt(maxCombination);
+            for (Map<List<int[]>, Integer> map : Arrays.asList(defaultMap, userMap))
+            {
+                output.writeInt(map.size());
+                for (Map.Entry<List<int[]>, Integer> entry : map.entrySet())
+                {
+                    output.writeInt(entry.getValue());
+                    output.writeInt(entry.getKey().size());
+                    for (int[] array : entry.getKey())
+                    {
+                        output.writeInt(array == null ? -1 : array.length);
+                        for (int i = 0; array != null && i < array.length; i++)
+                            output.writeInt(array[i]);
+                    }
+                }
+            }
+            output.flush();
+            return MessageDigest.getInstance("SHA-256").digest(bytes.toByteArray());
+        } catch (IOException | NoSuchAlgorithmException e)
+        {
+            // neither can happen, the output is in memory and every JVM provides SHA-256
+            throw new IllegalStateException(e);
         }
     }
 
-    private static int[] prepareOutputCharArray(int[] obfuscatedOutputArray, long seed, int[] inputArray, int[] outputArray)
+    /**
+     * Returns the fingerprint of the combinations followed by the hashMode, everything the output depends on.
+     */
+    byte[] getConfigurationFingerprint()
+    {
+        byte[] configurationFingerprint = Arrays.copyOf(this.fingerprint, this.fingerprint.length + 1);
+        configurationFingerprint[this.fingerprint.length] = (byte) this.hashMode;
+        return configurationFingerprint;
+    }
+
+    /**
+     * Writes all the combinations into a file, along with the fingerprint of the parameters they were built with.
+     * Any number of instances can then be created from the file with PJObfuscateUtil(Path, ...) without building
+     * the combinations again. The file must be exported again whenever the class or the parameters change.
+     */
+    public void exportTables(Path tables) throws IOException
     {
-        if (inputArray != null && inputArray.length >= 1 && outputArray != null && outputArray.length >= 1 && inputArray.length == outputArray.length)
+        int tableLength = getTableLength();
+        // the hash never goes beyond maxCombination - 1, the last combination is not needed
+        int tableCount = this.maxCombination;
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream header = new DataOutputStream(bytes);
+        header.write(this.fingerprint);
+        header.writeInt(tableCount);
+        header.writeInt(tableLength);
+        header.writeInt(this.slotCount);
+        header.writeInt(this.supplementaryCount);
+        header.writeInt(this.slotIndexBase);
+        header.writeInt(this.slotIndex.length);
+        for (int i = 0; i < this.slotIndex.length; i++)
+            header.writeInt(this.slotIndex[i]);
+        int blockCount = 0;
+        for (int block = 0; this.supplementaryIndex != null && block < this.supplementaryIndex.length; block++)
+            if (this.supplementaryIndex[block] != null)
+                blockCount++;
+        header.writeInt(blockCount);
+        for (int block = 0; blockCount > 0 && block < this.supplementaryIndex.length; block++)
+            if (this.supplementaryIndex[block] != null)
+            {
+                header.writeInt(block);
+                for (int i = 0; i < this.supplementaryIndex[block].length; i++)
+                    header.writeInt(this.supplementaryIndex[block][i]);
+            }
+        header.flush();
+        try (FileChannel channel = FileChannel.open(tables, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE))
         {
-            shuffleArray(outputArray, new Random(seed));
-            for (int i = 0; i < inputArray.length; i++)
+            ByteBuffer buffer = ByteBuffer.allocate(12 + bytes.size());
+            buffer.putInt(TABLES_MAGIC).putInt(TABLES_VERSION).putInt(bytes.size()).put(bytes.toByteArray());
+            buffer.flip();
+            writeFully(channel, buffer);
+            buffer = ByteBuffer.allocate(tableLength * 2);
+            for (int i = 0; i < tableCount; i++)
             {
-                obfuscatedOutputArray[inputArray[i]] = (char) outputArray[i];
+                buffer.clear();
+                buffer.asCharBuffer().put(this.masterList != null ? this.masterList.get(i) : getObfuscatedArray(i));
+                writeFully(channel, buffer);
             }
         }
-        return obfuscatedOutputArray;
     }
 
-    private static int[] prepareOutputCharArray(int[] obfuscatedOutputArray, long seed, int inFrom, int inTo, int outFrom, int outTo)
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException
     {
-        if (inFrom < inTo && outFrom < outTo && inFrom - inTo == outFrom - outTo)
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+    }
+
+    private void readTables(Path tables) throws IOException
+    {
+        try (FileChannel channel = FileChannel.open(tables, StandardOpenOption.READ))
         {
-            int[] fillArray = getRandomArray(new Random(seed), (outTo - outFrom + 1));
-            int startPoint = 0;
-            for (int i = inFrom; i < (inTo + 1); i++)
+            ByteBuffer buffer = ByteBuffer.allocate(12);
+            while (buffer.hasRemaining() && channel.read(buffer) > -1)
+                ;
+            buffer.flip();
+            if (buffer.remaining() < 12 || buffer.getInt() != TABLES_MAGIC || buffer.getInt() != TABLES_VERSION)
+                throw new IOException("Not a table file of this version: " + tables);
+            int headerLength = buffer.getInt();
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 12, headerLength);
+            byte[] fingerprint = new byte[this.fingerprint.length];
+            header.get(fingerprint);
+            int tableCount = header.getInt();
+            if (!MessageDigest.isEqual(fingerprint, this.fingerprint) || tableCount != this.maxCombination)
+                throw new IllegalArgumentException("The tables of " + tables + " were exported with different parameters");
+            int tableLength = header.getInt();
+            this.slotCount = header.getInt();
+            this.supplementaryCount = header.getInt();
+            this.slotIndexBase = header.getInt();
+            this.slotIndex = new int[header.getInt()];
+            header.asIntBuffer().get(this.slotIndex);
+            header.position(header.position() + this.slotIndex.length * 4);
+            int blockCount = header.getInt();
+            if (blockCount > 0)
+                this.supplementaryIndex = new int[(Character.MAX_CODE_POINT + 1 - Character.MIN_SUPPLEMENTARY_CODE_POINT) >>> 8][];
+            for (int i = 0; i < blockCount; i++)
+            {
+                int block = header.getInt();
+                this.supplementaryIndex[block] = new int[256];
+                for (int j = 0; j < 256; j++)
+                    this.supplementaryIndex[block][j] = header.getInt();
+            }
+            if (tableLength != getTableLength())
+                throw new IOException("Corrupted table file: " + tables);
+            // a mapping cannot exceed 2GB, each one holds as many whole combinations as it can
+            long tablesOffset = 12L + headerLength;
+            this.mappedCombinationCount = Integer.MAX_VALUE / (tableLength * 2);
+            this.mappedList = new MappedByteBuffer[(tableCount + this.mappedCombinationCount - 1) / this.mappedCombinationCount];
+            for (int i = 0; i < this.mappedList.length; i++)
             {
-                obfuscatedOutputArray[i] = (char) fillArray[startPoint] + outFrom;
-                startPoint++;
+                int count = Math.min(this.mappedCombinationCount, tableCount - i * this.mappedCombinationCount);
+                this.mappedList[i] = channel.map(FileChannel.MapMode.READ_ONLY,
+                        tablesOffset + (long) i * this.mappedCombinationCount * tableLength * 2, (long) count * tableLength * 2);
             }
         }
-        return obfuscatedOutputArray;
     }
 
+    private final char getObfuscated(char[] arrayInPlay, char input)
+    {
+        int index = input - this.slotIndexBase;
+        int slot = index > -1 && index < this.slotIndex.length ? this.slotIndex[index] : 0;
+        if (slot != 0)
+            return arrayInPlay[slot];
+        else
+            return input;
+    }
+
+    /**
+     * Returns the obfuscated surrogate pair of the code point made of high and low packed in an int, or -1 when they
+     * are not a configured supplementary code point and have to be obfuscated one char at a time.
+     */
+    private final int getObfuscated(char[] arrayInPlay, char high, char low)
+    {
+        if (!Character.isSurrogatePair(high, low))
+            return -1;
+        int slot = getSupplementarySlot(Character.toCodePoint(high, low));
+        if (slot != 0)
+            return arrayInPlay[slot] << 16 | arrayInPlay[slot + 1];
+        else
+            return -1;
+    }
+
+    private final int getObfuscated(char[] arrayInPlay, CharSequence input, int index, int end)
+    {
+        if (this.supplementaryIndex == null || index + 1 >= end)
+            return -1;
+        return getObfuscated(arrayInPlay, input.charAt(index), input.charAt(index + 1));
+    }
+
+    private final void getObfuscated(char[] arrayInPlay, char[] input, int offset, int length, char[] output, int outputOffset)
+    {
+        if (IS_LATIN1_FAST_PATH && isLatin1(input, offset, length))
+        {
+            // no range check nor slot lookup, each char is the index of its obfuscated value
+            int latin1Offset = arrayInPlay.length - LATIN1_SIZE;
+            for (int i = 0; i < length; i++)
+                output[outputOffset + i] = arrayInPlay[latin1Offset + input[offset + i]];
+        }
+        // BMP only rules, every char is obfuscated on its own
+        else if (this.supplementaryIndex == null)
+            for (int i = 0; i < length; i++)
+                output[outputOffset + i] = getObfuscated(arrayInPlay, input[offset + i]);
+        else
+            for (int i = 0; i < length; i++)
+            {
+                int pair = i + 1 < length ? getObfuscated(arrayInPlay, input[offset + i], input[offset + i + 1]) : -1;
+                if (pair != -1)
+                {
+                    output[outputOffset + i++] = (char) (pair >>> 16);
+                    output[outputOffset + i] = (char) pair;
+                } else
+                    output[outputOffset + i] = getObfuscated(arrayInPlay, input[offset + i]);
+            }
+    }
+
+    private final void getObfuscated(char[] arrayInPlay, CharSequence input, int offset, int length, char[] output, int outputOffset)
+    {
+        if (IS_LATIN1_FAST_PATH && input instanceof String && isLatin1((String) input, offset, length))
+        {
+            int latin1Offset = arrayInPlay.length - LATIN1_SIZE;
+            for (int i = 0; i < length; i++)
+                output[outputOffset + i] = arrayInPlay[latin1Offset + input.charAt(offset + i)];
+        } else if (this.supplementaryIndex == null)
+            for (int i = 0; i < length; i++)
+                output[outputOffset + i] = getObfuscated(arrayInPlay, input.charAt(offset + i));
+        else
+            for (int i = 0; i < length; i++)
+            {
+                int pair = getObfuscated(arrayInPlay, input, offset + i, offset + length);
+                if (pair != -1)
+                {
+                    output[outputOffset + i++] = (char) (pair >>> 16);
+                    output[outputOffset + i] = (char) pair;
+                } else
+                    output[outputOffset + i] = getObfuscated(arrayInPlay, input.charAt(offset + i));
+            }
+    }
+
+    /**
+     * Tells whether all the chars are below 256, the chars are or-ed together without a branch so that the loop is
+     * vectorized by the JIT.
+     */
+    private static boolean isLatin1(char[] input, int offset, int length)
+    {
+        int bits = 0;
+        for (int i = offset; i < offset + length; i++)
+            bits |= input[i];
+        return bits < LATIN1_SIZE;
+    }
+
+    private static boolean isLatin1(String input, int offset, int length)
+    {
+        int bits = 0;
+        for (int i = offset; i < offset + length; i++)
+            bits |= input.charAt(i);
+        return bits < LATIN1_SIZE;
+    }
+
+    private final String getObfuscated(char[] arrayInPlay, String input)
+    {
+        char[] returnArray = new char[input.length()];
+        getObfuscated(arrayInPlay, input, 0, input.length(), returnArray, 0);
+        return new String(returnArray);
+    }
+
+    /**
+     * Obfuscates the characters between start and end of the StringBuilder in place.
+     */
+    private final void getObfuscated(StringBuilder input, int start, int end)
+    {
+        if (end > start)
+        {
+            char[] arrayInPlay = getArrayInPlay(input, start, end - start);
+            for (int i = start; i < end; i++)
+            {
+                int pair = getObfuscated(arrayInPlay, input, i, end);
+                if (pair != -1)
+                {
+                    input.setCharAt(i++, (char) (pair >>> 16));
+                    input.setCharAt(i, (char) pair);
+                } else
+                    input.setCharAt(i, getObfuscated(arrayInPlay, input.charAt(i)));
+            }
+        }
+    }
+
+    private static int[] getRandomArray(Random random, int size)
+    {
+        int[] randomArray = new int[size];
+        Arrays.setAll(randomArray, i -> i++);
+        shuffleArray(randomArray, random);
+        return randomArray;
+    }
+
+    private static void shuffleArray(int[] array, Random random)
+    {
+        for (int i = 0; i < array.length; i++)
+        {
+            int rand = random.nextInt(array.length);
+            int temp = array[rand];
+            array[rand] = array[i];
+            array[i] = temp;
+        }
+    }
+
+    /**
+     * All the values of the list are obfuscated with the combination of the first value that is not empty. Values
+     * that appear more than once in a big list are obfuscated only once.
+     */
     public List<String> getObfuscated(List<String> input)
     {
         List<String> output = null;
@@ -396,66 +1228,148 @@ public final class PJObfuscateUtil
             output = input;
         else
         {
+            long sampleStart = IS_METRICS_ENABLED ? this.metrics.getSampleStart() : 0;
             output = new ArrayList<>(input.size());
-            int[] arrayInPlay = null;
+            char[] arrayInPlay = null;
+            String firstValue = null;
+            // the values share the same combination, so a repeated value has the same obfuscated value
+            Map<String, String> obfuscatedMap = input.size() > DEDUPLICATE_SIZE ? new HashMap<>() : null;
             for (int i = 0; i < input.size(); i++)
             {
-                if (input.get(i) == null || input.get(i).length() == 0)
-                    output.add(input.get(i));
+                String value = input.get(i);
+                if (value == null || value.length() == 0)
+                    output.add(value);
                 else
                 {
                     if (arrayInPlay == null)
-                        arrayInPlay = getArrayInPlay(input.get(i).toCharArray());
-                    output.add(getObfuscated(arrayInPlay, input.get(i).toCharArray()));
+                    {
+                        arrayInPlay = getArrayInPlay(value, 0, value.length());
+                        firstValue = value;
+                    }
+                    String obfuscatedValue = obfuscatedMap == null ? null : obfuscatedMap.get(value);
+                    if (obfuscatedValue == null)
+                    {
+                        obfuscatedValue = getObfuscated(arrayInPlay, value);
+                        if (obfuscatedMap != null)
+                            obfuscatedMap.put(value, obfuscatedValue);
+                    }
+                    output.add(obfuscatedValue);
                 }
             }
+            if (IS_METRICS_ENABLED)
+                addListMetrics(input, firstValue, sampleStart);
         }
         return output;
     }
 
-    private static final String getMatchedGroup(int group, Matcher m)
+    private void addListMetrics(List<String> input, String firstValue, long sampleStart)
     {
-        if (m.group(group) == null)
-            return "";
-        else
-            return m.group(group);
+        long nanos = sampleStart == Long.MIN_VALUE ? 0 : System.nanoTime() - sampleStart;
+        int values = 0;
+        long chars = 0;
+        for (String value : input)
+            if (value != null && value.length() > 0)
+            {
+                values++;
+                chars += value.length();
+            }
+        this.metrics.addValues(values, chars);
+        if (sampleStart == Long.MIN_VALUE)
+            return;
+        int passedThroughChars = 0;
+        for (String value : input)
+            if (value != null)
+                passedThroughChars += getPassedThroughCount(value, 0, value.length());
+        this.metrics.addSample(Metrics.LIST, nanos, firstValue == null ? -1 : getHash(firstValue, 0, firstValue.length()),
+                (int) Math.min(Integer.MAX_VALUE, chars), passedThroughChars);
     }
 
     public final String getObfuscatedBySpace(String input)
+    {
+        return getObfuscatedByDelimiter(input, SPACE_DELIMITERS);
+    }
+
+    /**
+     * Same as getObfuscatedBySpace(String) except the words are separated by any of the characters of delimiters,
+     * for example EMAIL_DELIMITERS obfuscates each part of an email address on its own. The delimiters themselves
+     * are not obfuscated.
+     */
+    public final String getObfuscatedByDelimiter(String input, String delimiters)
     {
         if (input == null || input.length() == 0)
             return input;
         else
         {
-            StringBuilder stringBuilder = new StringBuilder(input.length());
-            Matcher matcher = PATTERN_BY_SPACE.matcher(input);
-            while (matcher.find())
+            long sampleStart = IS_METRICS_ENABLED ? this.metrics.getSampleStart() : 0;
+            char[] returnArray = new char[input.length()];
+            getObfuscatedByDelimiter(input, 0, input.length(), returnArray, 0, delimiters);
+            String output = new String(returnArray);
+            if (IS_METRICS_ENABLED)
+                addMetrics(Metrics.BY_DELIMITER, sampleStart, input, delimiters);
+            return output;
+        }
+    }
+
+    /**
+     * Writes the result of getObfuscatedByDelimiter(String, String) for length characters of input starting at offset
+     * into output starting at outputOffset. The input is scanned once and each word is hashed where it is, nothing is
+     * allocated. Input and output may be the same array. Returns the number of characters written, always length.
+     */
+    public int getObfuscatedByDelimiter(CharSequence input, int offset, int length, char[] output, int outputOffset, String delimiters)
+    {
+        int end = offset + length;
+        int i = offset;
+        while (i < end)
+        {
+            char c = input.charAt(i);
+            if (isDelimiter(c, delimiters))
+            {
+                output[outputOffset + i - offset] = c;
+                i++;
+            } else
             {
-                stringBuilder.append(getMatchedGroup(1, matcher));
-                stringBuilder.append(getObfuscated(getMatchedGroup(2, matcher)));
-                stringBuilder.append(getMatchedGroup(3, matcher));
+                int wordStart = i;
+                while (i < end && !isDelimiter(input.charAt(i), delimiters))
+                    i++;
+                int wordLength = i - wordStart;
+                getObfuscated(getArrayInPlay(input, wordStart, wordLength), input, wordStart, wordLength, output, outputOffset + wordStart - offset);
             }
-            return stringBuilder.toString();
         }
+        return length;
+    }
+
+    private static boolean isDelimiter(char c, String delimiters)
+    {
+        // SPACE_DELIMITERS are the characters of \s in a regular expression
+        if (delimiters == SPACE_DELIMITERS)
+            return c == ' ' || (c >= '\t' && c <= '\r');
+        return delimiters.indexOf(c) > -1;
     }
 
     public final String getObfuscated(String input)
     {
         if (input == null || input.length() == 0)
             return input;
-        else
-            return getObfuscated(input.toCharArray());
+        else if (IS_METRICS_ENABLED)
+        {
+            long sampleStart = this.metrics.getSampleStart();
+            String output = getObfuscated(getArrayInPlay(input, 0, input.length()), input);
+            addMetrics(Metrics.VALUE, sampleStart, input, null);
+            return output;
+        } else
+            return getObfuscated(getArrayInPlay(input, 0, input.length()), input);
     }
 
     public String getObfuscated(double input)
     {
-        char[] inputArray = ("" + input).toCharArray();
-        return getObfuscated(inputArray);
+        StringBuilder stringBuilder = new StringBuilder(24);
+        return getObfuscated(input, stringBuilder).toString();
     }
 
     public String getObfuscated(long input)
     {
-        return getObfuscated(("" + input).toCharArray());
+        char[] returnArray = new char[20];
+        return new String(returnArray, 0, getObfuscated(input, returnArray, 0));
     }
 
     public String getObfuscated(char input)
@@ -463,6 +1377,789 @@ public final class PJObfuscateUtil
         return getObfuscated("" + input);
     }
 
+    /**
+     * Obfuscates length characters of input starting at offset and writes them into output starting at
+     * outputOffset. Nothing is allocated, input and output may be the same array. Returns the number of
+     * characters written, which is always length.
+     */
+    public int getObfuscated(char[] input, int offset, int length, char[] output, int outputOffset)
+    {
+        if (length > 0)
+            getObfuscated(getArrayInPlay(input, offset, length), input, offset, length, output, outputOffset);
+        return length;
+    }
+
+    /**
+     * Same as getObfuscated(char[], int, int, char[], int) for any CharSequence such as String or StringBuilder.
+     */
+    public int getObfuscated(CharSequence input, int offset, int length, char[] output, int outputOffset)
+    {
+        if (length > 0)
+            getObfuscated(getArrayInPlay(input, offset, length), input, offset, length, output, outputOffset);
+        return length;
+    }
+
+    /**
+     * Appends the obfuscated value of length characters of input starting at offset to output.
+     */
+    public StringBuilder getObfuscated(CharSequence input, int offset, int length, StringBuilder output)
+    {
+        if (length > 0)
+        {
+            char[] arrayInPlay = getArrayInPlay(input, offset, length);
+            for (int i = offset; i < offset + length; i++)
+            {
+                int pair = getObfuscated(arrayInPlay, input, i, offset + length);
+                if (pair != -1)
+                {
+                    output.append((char) (pair >>> 16)).append((char) pair);
+                    i++;
+                } else
+                    output.append(getObfuscated(arrayInPlay, input.charAt(i)));
+            }
+        }
+        return output;
+    }
+
+    /**
+     * Puts the obfuscated value of length characters of input starting at offset into output, at its position.
+     */
+    public CharBuffer getObfuscated(CharSequence input, int offset, int length, CharBuffer output)
+    {
+        if (length > 0)
+        {
+            char[] arrayInPlay = getArrayInPlay(input, offset, length);
+            for (int i = offset; i < offset + length; i++)
+            {
+                int pair = getObfuscated(arrayInPlay, input, i, offset + length);
+                if (pair != -1)
+                {
+                    output.put((char) (pair >>> 16)).put((char) pair);
+                    i++;
+                } else
+                    output.put(getObfuscated(arrayInPlay, input.charAt(i)));
+            }
+        }
+        return output;
+    }
+
+    /**
+     * Writes the obfuscated decimal value of input into output starting at outputOffset, the result is the same as
+     * getObfuscated(long) but no String is created. Output must have room for 20 characters, returns the number of
+     * characters written.
+     */
+    public int getObfuscated(long input, char[] output, int outputOffset)
+    {
+        int length = 1;
+        // negative values are used so that Long.MIN_VALUE does not overflow
+        long value = input < 0 ? input : -input;
+        for (long i = value / 10; i != 0; i /= 10)
+            length++;
+        if (input < 0)
+        {
+            output[outputOffset] = '-';
+            length++;
+        }
+        for (int i = outputOffset + length - 1; value != 0 || i == outputOffset + length - 1; i--)
+        {
+            output[i] = (char) ('0' - (value % 10));
+            value /= 10;
+        }
+        return getObfuscated(output, outputOffset, length, output, outputOffset);
+    }
+
+    /**
+     * Appends the obfuscated decimal value of input to output, the result is the same as getObfuscated(long).
+     */
+    public StringBuilder getObfuscated(long input, StringBuilder output)
+    {
+        int start = output.length();
+        output.append(input);
+        getObfuscated(output, start, output.length());
+        return output;
+    }
+
+    /**
+     * Appends the obfuscated value of input to output, the result is the same as getObfuscated(double)
+     * but no intermediate String is created.
+     */
+    public StringBuilder getObfuscated(double input, StringBuilder output)
+    {
+        int start = output.length();
+        output.append(input);
+        getObfuscated(output, start, output.length());
+        return output;
+    }
+
+    /**
+     * Obfuscates length bytes of UTF-8 input starting at offset and writes the UTF-8 result into output starting at
+     * outputOffset, the result is exactly the bytes of getObfuscated(String) for the decoded value. ASCII bytes are
+     * looked up as they are, only multi-byte sequences are decoded and nothing is allocated. Bytes that are not valid
+     * UTF-8 go through the String path so that they are replaced the same way. A character may be replaced with one
+     * that is encoded on more bytes, output must have room for 3 times length bytes and must not overlap input.
+     * Returns the number of bytes written.
+     */
+    public int getObfuscatedUtf8(byte[] input, int offset, int length, byte[] output, int outputOffset)
+    {
+        if (length == 0)
+            return 0;
+        int utf16Length = getUtf16Length(input, offset, offset + length);
+        if (utf16Length < 0)
+            return getBytes(getObfuscated(new String(input, offset, length, StandardCharsets.UTF_8)), output, outputOffset);
+        return getObfuscatedUtf8(input, offset, offset + length, utf16Length, output, outputOffset);
+    }
+
+    /**
+     * Same as getObfuscatedUtf8(byte[], int, int, byte[], int) with the result of getObfuscatedByDelimiter(String,
+     * String). ASCII delimiters are found in the bytes themselves since they are never part of a multi-byte sequence.
+     */
+    public int getObfuscatedUtf8ByDelimiter(byte[] input, int offset, int length, byte[] output, int outputOffset, String delimiters)
+    {
+        if (length == 0)
+            return 0;
+        int end = offset + length;
+        if (getUtf16Length(input, offset, end) < 0 || !isAscii(delimiters))
+            return getBytes(getObfuscatedByDelimiter(new String(input, offset, length, StandardCharsets.UTF_8), delimiters), output, outputOffset);
+        int outputIndex = outputOffset;
+        int i = offset;
+        while (i < end)
+        {
+            if (input[i] >= 0 && isDelimiter((char) input[i], delimiters))
+                output[outputIndex++] = input[i++];
+            else
+            {
+                int wordStart = i;
+                while (i < end && !(input[i] >= 0 && isDelimiter((char) input[i], delimiters)))
+                    i++;
+                outputIndex += getObfuscatedUtf8(input, wordStart, i, getUtf16Length(input, wordStart, i), output, outputIndex);
+            }
+        }
+        return outputIndex - outputOffset;
+    }
+
+    /**
+     * Same as getObfuscatedUtf8(byte[], int, int, byte[], int) for the remaining bytes of input, the result is put
+     * into output at its position. Output must have 3 times the remaining bytes of input left, both positions are
+     * moved past the bytes read and written. Direct buffers are copied through a temporary array.
+     */
+    public ByteBuffer getObfuscatedUtf8(ByteBuffer input, ByteBuffer output)
+    {
+        int length = input.remaining();
+        if (output.remaining() < length * 3)
+            throw new BufferOverflowException();
+        if (input.hasArray() && output.hasArray())
+        {
+            int written = getObfuscatedUtf8(input.array(), input.arrayOffset() + input.position(), length, output.array(),
+                    output.arrayOffset() + output.position());
+            input.position(input.limit());
+            output.position(output.position() + written);
+        } else
+        {
+            byte[] inputArray = new byte[length];
+            byte[] outputArray = new byte[length * 3];
+            input.get(inputArray);
+            output.put(outputArray, 0, getObfuscatedUtf8(inputArray, 0, length, outputArray, 0));
+        }
+        return output;
+    }
+
+    private final int getObfuscatedUtf8(byte[] input, int offset, int end, int length, byte[] output, int outputOffset)
+    {
+        char[] arrayInPlay = getCombination(getHash(input, offset, end, length));
+        int outputIndex = outputOffset;
+        // a high surrogate is written once we know whether a low surrogate follows it, like String.getBytes does
+        char high = 0;
+        for (int i = offset; i < end;)
+        {
+            int b = input[i];
+            if (b >= 0 && high == 0)
+            {
+                char c = arrayInPlay[arrayInPlay.length - LATIN1_SIZE + b];
+                if (c < 0x80)
+                {
+                    output[outputIndex++] = (byte) c;
+                    i++;
+                    continue;
+                }
+            }
+            int sequenceLength = getUtf8Length(b);
+            int codePoint = getCodePoint(input, i, sequenceLength);
+            char first;
+            char second = 0;
+            int count = 1;
+            if (codePoint < Character.MIN_SUPPLEMENTARY_CODE_POINT)
+            {
+                first = getObfuscated(arrayInPlay, (char) codePoint);
+                if (high == 0 && !Character.isSurrogate(first))
+                {
+                    outputIndex = putUtf8(output, outputIndex, first);
+                    i += sequenceLength;
+                    continue;
+                }
+            } else
+            {
+                int pair = this.supplementaryIndex == null ? -1
+                        : getObfuscated(arrayInPlay, Character.highSurrogate(codePoint), Character.lowSurrogate(codePoint));
+                if (pair != -1)
+                {
+                    first = (char) (pair >>> 16);
+                    second = (char) pair;
+                } else
+                {
+                    first = getObfuscated(arrayInPlay, Character.highSurrogate(codePoint));
+                    second = getObfuscated(arrayInPlay, Character.lowSurrogate(codePoint));
+                }
+                count = 2;
+            }
+            i += sequenceLength;
+            for (int j = 0; j < count; j++)
+            {
+                char c = j == 0 ? first : second;
+                if (high != 0 && Character.isLowSurrogate(c))
+                {
+                    outputIndex = putUtf8(output, outputIndex, Character.toCodePoint(high, c));
+                    high = 0;
+                    continue;
+                }
+                if (high != 0)
+                {
+                    output[outputIndex++] = '?';
+                    high = 0;
+                }
+                if (Character.isHighSurrogate(c))
+                    high = c;
+                else if (Character.isLowSurrogate(c))
+                    output[outputIndex++] = '?';
+                else
+                    outputIndex = putUtf8(output, outputIndex, c);
+            }
+        }
+        if (high != 0)
+            output[outputIndex++] = '?';
+        return outputIndex - outputOffset;
+    }
+
+    /**
+     * Same hash as getHash(CharSequence, int, int) over the UTF-16 chars of well-formed UTF-8 bytes, length is their
+     * number of chars.
+     */
+    private final int getHash(byte[] input, int offset, int end, int length)
+    {
+        int last = length - 1;
+        // as many chars as bytes, they are all ASCII
+        if (length == end - offset && this.hashMode == SAMPLED_HASH)
+            return getHash(length, (char) input[offset], (char) input[offset + last / 4], (char) input[offset + last / 2],
+                    (char) input[offset + last * 3 / 4], (char) input[offset + last]);
+        if (this.hashMode == WHOLE_VALUE_HASH)
+        {
+            long hash = getWholeValueHash(length);
+            for (int i = offset; i < end;)
+            {
+                int sequenceLength = getUtf8Length(input[i]);
+                int codePoint = getCodePoint(input, i, sequenceLength);
+                i += sequenceLength;
+                if (codePoint < Character.MIN_SUPPLEMENTARY_CODE_POINT)
+                    hash = getWholeValueHash(hash, (char) codePoint);
+                else
+                    hash = getWholeValueHash(getWholeValueHash(hash, Character.highSurrogate(codePoint)), Character.lowSurrogate(codePoint));
+            }
+            return getWholeValueHash(hash);
+        }
+        // only the sampled chars are decoded, the others are just counted
+        char first = getUtf16Char(input, offset, 0, 0);
+        char quarter = first;
+        char half = first;
+        char threeQuarter = first;
+        char lastChar = first;
+        int i = offset;
+        int position = 0;
+        for (int sample = 1; sample < 5; sample++)
+        {
+            int index = sample == 1 ? last / 4 : sample == 2 ? last / 2 : sample == 3 ? last * 3 / 4 : last;
+            for (int sequenceLength = getUtf8Length(input[i]); position + (sequenceLength == 4 ? 2 : 1) <= index; sequenceLength = getUtf8Length(input[i]))
+            {
+                i += sequenceLength;
+                position += sequenceLength == 4 ? 2 : 1;
+            }
+            char c = getUtf16Char(input, i, position, index);
+            if (sample == 1)
+                quarter = c;
+            else if (sample == 2)
+                half = c;
+            else if (sample == 3)
+                threeQuarter = c;
+            else
+                lastChar = c;
+        }
+        return getHash(length, first, quarter, half, threeQuarter, lastChar);
+    }
+
+    /**
+     * Returns the UTF-16 char at index of the sequence that starts at the given byte and whose first char is at
+     * position, the high or the low surrogate of a supplementary code point.
+     */
+    private static char getUtf16Char(byte[] input, int i, int position, int index)
+    {
+        int sequenceLength = getUtf8Length(input[i]);
+        int codePoint = getCodePoint(input, i, sequenceLength);
+        if (sequenceLength < 4)
+            return (char) codePoint;
+        return index == position ? Character.highSurrogate(codePoint) : Character.lowSurrogate(codePoint);
+    }
+
+    /**
+     * Returns the number of UTF-16 chars of the UTF-8 bytes, or -1 when they are not well-formed. The checks are the
+     * ones of the JDK decoder, overlong forms, surrogates and code points above U+10FFFF are rejected.
+     */
+    private static int getUtf16Length(byte[] input, int offset, int end)
+    {
+        int length = 0;
+        for (int i = offset; i < end;)
+        {
+            int b = input[i];
+            if (b >= 0)
+            {
+                i++;
+                length++;
+                continue;
+            }
+            int sequenceLength = getUtf8Length(b);
+            if (sequenceLength == 0 || i + sequenceLength > end)
+                return -1;
+            if ((input[i + 1] & 0xC0) != 0x80)
+                return -1;
+            if (sequenceLength > 2)
+            {
+                if ((input[i + 2] & 0xC0) != 0x80 || (sequenceLength == 4 && (input[i + 3] & 0xC0) != 0x80))
+                    return -1;
+                int codePoint = getCodePoint(input, i, sequenceLength);
+                if (sequenceLength == 3 && (codePoint < 0x800 || Character.isSurrogate((char) codePoint)))
+                    return -1;
+                if (sequenceLength == 4 && (codePoint < Character.MIN_SUPPLEMENTARY_CODE_POINT || codePoint > Character.MAX_CODE_POINT))
+                    return -1;
+            }
+            i += sequenceLength;
+            length += sequenceLength == 4 ? 2 : 1;
+        }
+        return length;
+    }
+
+    /**
+     * Returns the length of the sequence started by the given leading byte, or 0 when it cannot start one.
+     */
+    private static int getUtf8Length(int b)
+    {
+        if (b >= 0)
+            return 1;
+        else if ((b & 0xE0) == 0xC0 && (b & 0xFF) >= 0xC2)
+            return 2;
+        else if ((b & 0xF0) == 0xE0)
+            return 3;
+        else if ((b & 0xF8) == 0xF0 && (b & 0xFF) <= 0xF4)
+            return 4;
+        else
+            return 0;
+    }
+
+    private static int getCodePoint(byte[] input, int index, int sequenceLength)
+    {
+        switch (sequenceLength)
+        {
+        case 1:
+            return input[index];
+        case 2:
+            return (input[index] & 0x1F) << 6 | input[index + 1] & 0x3F;
+        case 3:
+            return (input[index] & 0x0F) << 12 | (input[index + 1] & 0x3F) << 6 | input[index + 2] & 0x3F;
+        default:
+            return (input[index] & 0x07) << 18 | (input[index + 1] & 0x3F) << 12 | (input[index + 2] & 0x3F) << 6 | input[index + 3] & 0x3F;
+        }
+    }
+
+    private static int putUtf8(byte[] output, int outputIndex, int codePoint)
+    {
+        if (codePoint < 0x80)
+            output[outputIndex++] = (byte) codePoint;
+        else if (codePoint < 0x800)
+        {
+            output[outputIndex++] = (byte) (0xC0 | codePoint >> 6);
+            output[outputIndex++] = (byte) (0x80 | codePoint & 0x3F);
+        } else if (codePoint < Character.MIN_SUPPLEMENTARY_CODE_POINT)
+        {
+            output[outputIndex++] = (byte) (0xE0 | codePoint >> 12);
+            output[outputIndex++] = (byte) (0x80 | codePoint >> 6 & 0x3F);
+            output[outputIndex++] = (byte) (0x80 | codePoint & 0x3F);
+        } else
+        {
+            output[outputIndex++] = (byte) (0xF0 | codePoint >> 18);
+            output[outputIndex++] = (byte) (0x80 | codePoint >> 12 & 0x3F);
+            output[outputIndex++] = (byte) (0x80 | codePoint >> 6 & 0x3F);
+            output[outputIndex++] = (byte) (0x80 | codePoint & 0x3F);
+        }
+        return outputIndex;
+    }
+
+    private static int getBytes(String value, byte[] output, int outputOffset)
+    {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        System.arraycopy(bytes, 0, output, outputOffset, bytes.length);
+        return bytes.length;
+    }
+
+    private static boolean isAscii(String value)
+    {
+        for (int i = 0; i < value.length(); i++)
+            if (value.charAt(i) >= 0x80)
+                return false;
+        return true;
+    }
+
+    /**
+     * A rule of the default map or the userMap, parsed once by the constructor.
+     */
+    private static final class ObfuscationRule
+    {
+        // characters to shuffle, null when the rule is a range
+        private int[] input = null;
+        // array passed as second list element, it is shuffled in place for each combination
+        private int[] output = null;
+        private int[][] outputStates = null;
+        private int inFrom;
+        private int inTo;
+        private int outFrom;
+        private int outTo;
+        // code points above the BMP, they are mapped as whole surrogate pairs
+        private boolean isSupplementary;
+
+        private static ObfuscationRule getIndexRule(int[] input, int[] output, boolean hasOutput)
+        {
+            int[] target = hasOutput ? output : input;
+            if (input == null || input.length < 1 || target == null || target.length < 1 || input.length != target.length)
+                return null;
+            boolean isSupplementary = input[0] >= Character.MIN_SUPPLEMENTARY_CODE_POINT;
+            for (int i = 0; i < input.length; i++)
+            {
+                checkCharIndex(input[i], isSupplementary);
+                if (isSupplementary)
+                    checkCharIndex(target[i], isSupplementary);
+            }
+            ObfuscationRule rule = new ObfuscationRule();
+            rule.input = input;
+            rule.output = output;
+            rule.isSupplementary = isSupplementary;
+            return rule;
+        }
+
+        private static ObfuscationRule getRangeRule(int[] input, int[] output)
+        {
+            int[] target = output == null ? input : output;
+            if (input[0] < input[1] && target[0] < target[1] && input[0] - input[1] == target[0] - target[1])
+            {
+                boolean isSupplementary = input[0] >= Character.MIN_SUPPLEMENTARY_CODE_POINT;
+                checkCharIndex(input[0], isSupplementary);
+                checkCharIndex(input[1], isSupplementary);
+                if (isSupplementary)
+                {
+                    checkCharIndex(target[0], isSupplementary);
+                    checkCharIndex(target[1], isSupplementary);
+                }
+                ObfuscationRule rule = new ObfuscationRule();
+                rule.inFrom = input[0];
+                rule.inTo = input[1];
+                rule.outFrom = target[0];
+                rule.outTo = target[1];
+                rule.isSupplementary = isSupplementary;
+                return rule;
+            }
+            return null;
+        }
+
+        /**
+         * A rule works either on BMP characters or on supplementary code points, supplementary code points must be
+         * replaced with supplementary code points so that the obfuscated value keeps its length.
+         */
+        private static void checkCharIndex(int index, boolean isSupplementary)
+        {
+            if (index < 0 || index > Character.MAX_CODE_POINT || isSupplementary != (index >= Character.MIN_SUPPLEMENTARY_CODE_POINT))
+                throw new IllegalArgumentException("Character out of range: " + index);
+        }
+    }
+
+    /**
+     * What an instance did since it was created. The metrics are off by default, they are turned on for the whole
+     * JVM with -Dpj.util.metrics=true. When they are off getMetrics() returns null and the JIT removes the
+     * measurements from the obfuscation methods, they cost nothing.
+     *
+     * The values and characters given to getObfuscated(String), getObfuscatedBySpace(String),
+     * getObfuscatedByDelimiter(String, String) and getObfuscated(List) are all counted. One call in 64 is sampled,
+     * its latency is recorded in a histogram per method, along with the combination its value hashes to and the
+     * number of its characters that no rule or range covers and that are passed through as they are. Counters are
+     * striped LongAdders, the threads do not share a cache line for each value.
+     *
+     * Here is an example: -
+     * PJObfuscateUtil.Metrics metrics = obfuscateUtil.getMetrics();
+     * metrics.registerMBean("emails");
+     * System.out.println(metrics);
+     *
+     * A registered instance stays reachable through the platform MBean server until unregisterMBean() is called,
+     * PJObfuscateRegistry cannot release it meanwhile. The metrics live in this class so that it still compiles on
+     * its own.
+     */
+    public static final class Metrics implements MetricsMBean
+    {
+        static final int VALUE = 0;
+        static final int BY_DELIMITER = 1;
+        static final int LIST = 2;
+        private static final String[] OPERATION_NAMES = { "value", "byDelimiter", "list" };
+        private static final int SAMPLE_RATE = 64;
+        // 4 buckets per power of two of the nanoseconds, the percentiles are at most 25% above the real latency
+        private static final int SUB_BUCKET_BITS = 2;
+        private static final int LATENCY_BUCKET_COUNT = 64 << SUB_BUCKET_BITS;
+        private static final int MAX_COMBINATION_BUCKET_COUNT = 1024;
+        private final PJObfuscateUtil obfuscateUtil;
+        private final long constructionNanos;
+        private final int maxCombination;
+        private final LongAdder valueCount = new LongAdder();
+        private final LongAdder charCount = new LongAdder();
+        private final LongAdder sampledCharCount = new LongAdder();
+        private final LongAdder sampledPassedThroughCount = new LongAdder();
+        private final AtomicLongArray[] latencyHistograms = new AtomicLongArray[OPERATION_NAMES.length];
+        private final AtomicLongArray combinationHistogram;
+        private ObjectName objectName = null;
+
+        Metrics(PJObfuscateUtil obfuscateUtil, int maxCombination, long constructionNanos)
+        {
+            this.obfuscateUtil = obfuscateUtil;
+            this.maxCombination = maxCombination;
+            this.constructionNanos = constructionNanos;
+            for (int i = 0; i < this.latencyHistograms.length; i++)
+                this.latencyHistograms[i] = new AtomicLongArray(LATENCY_BUCKET_COUNT);
+            this.combinationHistogram = new AtomicLongArray(Math.min(maxCombination, MAX_COMBINATION_BUCKET_COUNT));
+        }
+
+        /**
+         * Returns the start of the call when it is sampled, Long.MIN_VALUE otherwise.
+         */
+        long getSampleStart()
+        {
+            return ThreadLocalRandom.current().nextInt(SAMPLE_RATE) == 0 ? System.nanoTime() : Long.MIN_VALUE;
+        }
+
+        void addValues(int values, long chars)
+        {
+            this.valueCount.add(values);
+            this.charCount.add(chars);
+        }
+
+        void addSample(int operation, long nanos, int combination, int chars, int passedThroughChars)
+        {
+            this.latencyHistograms[operation].incrementAndGet(getLatencyBucket(Math.max(0, nanos)));
+            if (combination > -1)
+                this.combinationHistogram.incrementAndGet((int) ((long) combination * this.combinationHistogram.length() / this.maxCombination));
+            this.sampledCharCount.add(chars);
+            this.sampledPassedThroughCount.add(passedThroughChars);
+        }
+
+        private static int getLatencyBucket(long nanos)
+        {
+            if (nanos < (1 << SUB_BUCKET_BITS))
+                return (int) nanos;
+            int power = 63 - Long.numberOfLeadingZeros(nanos);
+            return (power << SUB_BUCKET_BITS) + (int) ((nanos >>> (power - SUB_BUCKET_BITS)) & ((1 << SUB_BUCKET_BITS) - 1));
+        }
+
+        // the highest latency that falls in the bucket
+        private static long getLatencyBucketLimit(int bucket)
+        {
+            if (bucket < (1 << SUB_BUCKET_BITS))
+                return bucket;
+            int power = bucket >>> SUB_BUCKET_BITS;
+            long subBucket = bucket & ((1 << SUB_BUCKET_BITS) - 1);
+            return (1L << power) + ((subBucket + 1) << (power - SUB_BUCKET_BITS)) - 1;
+        }
+
+        @Override
+        public long getValueCount()
+        {
+            return this.valueCount.sum();
+        }
+
+        @Override
+        public long getCharCount()
+        {
+            return this.charCount.sum();
+        }
+
+        @Override
+        public long getSampledCharCount()
+        {
+            return this.sampledCharCount.sum();
+        }
+
+        /**
+         * Returns how many characters of the sampled values were passed through because no rule covers them or because
+         * they are outside of [startRange, endRange].
+         */
+        @Override
+        public long getSampledPassedThroughCount()
+        {
+            return this.sampledPassedThroughCount.sum();
+        }
+
+        @Override
+        public double getPassedThroughRatio()
+        {
+            long chars = getSampledCharCount();
+            return chars == 0 ? 0.0 : (double) getSampledPassedThroughCount() / chars;
+        }
+
+        /**
+         * Returns how many combinations the sampled values hashed to. When maxCombination is above 1024 the combinations
+         * are counted by groups of maxCombination / 1024 and this is the number of groups used.
+         */
+        @Override
+        public int getUsedCombinationCount()
+        {
+            int used = 0;
+            for (int i = 0; i < this.combinationHistogram.length(); i++)
+                if (this.combinationHistogram.get(i) > 0)
+                    used++;
+            return used;
+        }
+
+        public long[] getCombinationHistogram()
+        {
+            long[] histogram = new long[this.combinationHistogram.length()];
+            for (int i = 0; i < histogram.length; i++)
+                histogram[i] = this.combinationHistogram.get(i);
+            return histogram;
+        }
+
+        @Override
+        public long getConstructionNanos()
+        {
+            return this.constructionNanos;
+        }
+
+        /**
+         * Returns the bytes held by the combination tables and their indexes, in lazy mode only the combinations that
+         * are currently cached are counted.
+         */
+        @Override
+        public long getTableFootprint()
+        {
+            return this.obfuscateUtil.getTableFootprint();
+        }
+
+        /**
+         * Returns the latency in nanoseconds under which the given share of the sampled calls of the operation ("value",
+         * "byDelimiter" or "list") completed, or -1 when none was sampled.
+         */
+        public long getLatencyPercentile(String operation, double percentile)
+        {
+            for (int i = 0; i < OPERATION_NAMES.length; i++)
+                if (OPERATION_NAMES[i].equals(operation))
+                    return getLatencyPercentile(this.latencyHistograms[i], percentile);
+            throw new IllegalArgumentException("Unknown operation: " + operation);
+        }
+
+        private static long getLatencyPercentile(AtomicLongArray histogram, double percentile)
+        {
+            long[] counts = new long[histogram.length()];
+            long total = 0;
+            for (int i = 0; i < counts.length; i++)
+                total += counts[i] = histogram.get(i);
+            if (total == 0)
+                return -1;
+            long rank = Math.max(1, (long) Math.ceil(total * percentile));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++)
+            {
+                seen += counts[i];
+                if (seen >= rank)
+                    return getLatencyBucketLimit(i);
+            }
+            return getLatencyBucketLimit(counts.length - 1);
+        }
+
+        /**
+         * Returns all the metrics at once, the map is not updated afterwards. Latencies are in nanoseconds, -1 when no
+         * call was sampled.
+         */
+        @Override
+        public Map<String, Number> getSnapshot()
+        {
+            Map<String, Number> snapshot = new LinkedHashMap<>();
+            snapshot.put("values", getValueCount());
+            snapshot.put("chars", getCharCount());
+            snapshot.put("passedThroughRatio", getPassedThroughRatio());
+            snapshot.put("usedCombinations", getUsedCombinationCount());
+            snapshot.put("constructionNanos", getConstructionNanos());
+            snapshot.put("tableFootprint", getTableFootprint());
+            for (int i = 0; i < OPERATION_NAMES.length; i++)
+            {
+                long samples = 0;
+                for (int j = 0; j < LATENCY_BUCKET_COUNT; j++)
+                    samples += this.latencyHistograms[i].get(j);
+                snapshot.put(OPERATION_NAMES[i] + ".samples", samples);
+                snapshot.put(OPERATION_NAMES[i] + ".p50", getLatencyPercentile(this.latencyHistograms[i], 0.5));
+                snapshot.put(OPERATION_NAMES[i] + ".p99", getLatencyPercentile(this.latencyHistograms[i], 0.99));
+                snapshot.put(OPERATION_NAMES[i] + ".max", getLatencyPercentile(this.latencyHistograms[i], 1.0));
+            }
+            return Collections.unmodifiableMap(snapshot);
+        }
+
+        /**
+         * Registers the metrics in the platform MBean server as pj.util:type=PJObfuscateUtil.Metrics,name=[name].
+         */
+        public synchronized void registerMBean(String name) throws JMException
+        {
+            if (this.objectName != null)
+                throw new IllegalStateException("Already registered as " + this.objectName);
+            ObjectName objectName = new ObjectName("pj.util:type=PJObfuscateUtil.Metrics,name=" + ObjectName.quote(name));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+            this.objectName = objectName;
+        }
+
+        public synchronized void unregisterMBean() throws JMException
+        {
+            if (this.objectName == null)
+                return;
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(this.objectName);
+            this.objectName = null;
+        }
+
+        @Override
+        public String toString()
+        {
+            return getSnapshot().toString();
+        }
+    }
+
+    /**
+     * The attributes of Metrics as seen through JMX, see Metrics.registerMBean(String).
+     */
+    public interface MetricsMBean
+    {
+        long getValueCount();
+
+        long getCharCount();
+
+        long getSampledCharCount();
+
+        long getSampledPassedThroughCount();
+
+        double getPassedThroughRatio();
+
+        int getUsedCombinationCount();
+
+        long getConstructionNanos();
+
+        long getTableFootprint();
+
+        Map<String, Number> getSnapshot();
+    }
+
     public static void main(String[] args)
     {
         System.out.println(200 % 1000);